@@ -0,0 +1,21 @@
+#!/bin/sh
+
+# Runs one of the benchmarks in folder bench, for example:
+#     ./bench.sh VarintBench
+# Additional arguments are passed to the benchmark. Java options can
+# be given in JAVA_OPTS.
+
+set -e
+
+if [ $# -lt 1 ]; then
+    echo "Usage: $0 <benchmark> [arguments]"
+    exit 1
+fi
+
+classes=$(mktemp -d)
+trap 'rm -rf "$classes"' EXIT
+
+javac -Xlint:all -encoding UTF-8 -d "$classes" de/kumakyoo/oma/*.java bench/de/kumakyoo/oma/*.java
+name=$1
+shift
+java $JAVA_OPTS -cp "$classes" de.kumakyoo.oma.$name "$@"
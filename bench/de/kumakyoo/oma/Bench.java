@@ -0,0 +1,54 @@
+package de.kumakyoo.oma;
+
+import java.util.Arrays;
+
+// A minimal harness for the benchmarks in this folder. Each task is
+// run a few times to warm up the JIT, then timed several times. The
+// median is printed. Tasks return a checksum, so the JIT cannot drop
+// the work.
+public class Bench
+{
+    private static final int WARMUP = 5;
+    private static final int ROUNDS = 9;
+
+    interface Task
+    {
+        long run() throws Exception;
+    }
+
+    private static long checksum;
+
+    static double run(String name, Task task) throws Exception
+    {
+        long check = 0;
+        for (int i=0;i<WARMUP;i++)
+            check = task.run();
+
+        double[] ms = new double[ROUNDS];
+        for (int i=0;i<ROUNDS;i++)
+        {
+            long start = System.nanoTime();
+            long c = task.run();
+            ms[i] = (System.nanoTime()-start)/1e6;
+
+            if (c!=check)
+                throw new IllegalStateException(name+": results differ between rounds");
+        }
+        checksum += check;
+
+        Arrays.sort(ms);
+        double median = ms[ROUNDS/2];
+        System.out.printf("  %-40s %10.2f ms  (min %.2f, max %.2f)%n",name,median,ms[0],ms[ROUNDS-1]);
+        return median;
+    }
+
+    static void compare(String what, double before, double after)
+    {
+        System.out.printf("  %-40s %10.2fx%n",what,before/after);
+    }
+
+    static void done()
+    {
+        System.out.println("  (checksum "+checksum+")");
+    }
+}
@@ -0,0 +1,88 @@
+package de.kumakyoo.oma;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// Compares lookup of node ids with IdIndex and with a binary search
+// over the whole array, as done before.
+//
+// Three distributions of ids are used: dense (ids of a recent
+// extract), mixed (mostly dense, with small and some large gaps) and
+// clustered (dense runs, separated by large jumps, like an old extract
+// updated with recent data). References are taken like from ways:
+// several nearby nodes from a random place, and some ids that are not
+// contained at all.
+//
+// Usage: ./bench.sh IdIndexBench [number of ids] [number of lookups]
+public class IdIndexBench
+{
+    public static void main(String[] args) throws Exception
+    {
+        int n = args.length>0?Integer.parseInt(args[0]):10_000_000;
+        int m = args.length>1?Integer.parseInt(args[1]):5_000_000;
+
+        for (String dist:new String[]{"dense","mixed","clustered"})
+        {
+            Random r = new Random(42);
+            long[] ids = createIds(dist,n,r);
+            long[] refs = createRefs(ids,m,r);
+
+            System.out.println("Looking up "+m+" references in "+n+" "+dist+" ids:");
+
+            double before = Bench.run("Arrays.binarySearch (former lookup)",() -> {
+                    long sum = 0;
+                    for (long id:refs)
+                        sum += Arrays.binarySearch(ids,id);
+                    return sum;
+                });
+
+            IdIndex index = new IdIndex(ids,n);
+            double after = Bench.run("IdIndex.find",() -> {
+                    long sum = 0;
+                    for (long id:refs)
+                        sum += index.find(id);
+                    return sum;
+                });
+
+            Bench.compare("speedup",before,after);
+        }
+        Bench.done();
+    }
+
+    //////////////////////////////////////////////////////////////////
+
+    private static long[] createIds(String dist, int n, Random r)
+    {
+        long[] ids = new long[n];
+        long id = 1_000_000;
+        for (int i=0;i<n;i++)
+        {
+            int p = r.nextInt(1000);
+            id += switch (dist)
+            {
+                case "dense" -> p<900?1:2+r.nextInt(5);
+                case "mixed" -> p<700?1:p<990?2+r.nextInt(100):100+r.nextInt(1_000_000);
+                default -> p<998?1+r.nextInt(3):1_000_000_000L+r.nextInt(1_000_000_000);
+            };
+            ids[i] = id;
+        }
+        return ids;
+    }
+
+    private static long[] createRefs(long[] ids, int m, Random r)
+    {
+        long[] refs = new long[m];
+        int i = 0;
+        while (i<m)
+        {
+            int pos = r.nextInt(ids.length);
+            int len = 2+r.nextInt(20);
+            for (int j=0;j<len && i<m;j++,i++)
+            {
+                int p = Math.min(ids.length-1,Math.max(0,pos+r.nextInt(41)-20));
+                refs[i] = r.nextInt(10)==0?ids[p]+1:ids[p];
+            }
+        }
+        return refs;
+    }
+}
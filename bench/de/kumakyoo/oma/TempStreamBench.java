@@ -0,0 +1,93 @@
+package de.kumakyoo.oma;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Measures the throughput of in-memory temporary files
+// (ByteArrayListOutputStream and ByteArrayListInputStream). Records of
+// some bytes followed by a long are written and read back, as done in
+// the temporary files of Oma.
+//
+// Before the streams had bulk transfers, every array was copied byte
+// by byte. This is imitated by wrapping the streams in streams, that
+// only pass on single bytes.
+//
+// Usage: ./bench.sh TempStreamBench [MB to write]
+public class TempStreamBench
+{
+    private static final int RECORD = 4096;
+
+    public static void main(String[] args) throws Exception
+    {
+        int mb = args.length>0?Integer.parseInt(args[0]):200;
+        int records = (int)(mb*1_000_000L/(RECORD+8));
+
+        for (boolean direct:new boolean[]{false,true})
+        {
+            ByteArrayListOutputStream.malloc(mb+2,direct);
+            System.out.println("Writing and reading "+mb+" MB"+(direct?" (outside of the heap)":"")+":");
+
+            double wb = Bench.run("write, byte by byte (former)",() -> write(records,true));
+            double wa = Bench.run("write",() -> write(records,false));
+            double rb = Bench.run("read, byte by byte (former)",() -> read(records,true));
+            double ra = Bench.run("read",() -> read(records,false));
+
+            Bench.compare("speedup of writing",wb,wa);
+            Bench.compare("speedup of reading",rb,ra);
+
+            ByteArrayListOutputStream.mfree();
+        }
+        Bench.done();
+    }
+
+    //////////////////////////////////////////////////////////////////
+
+    private static ByteArrayListOutputStream last;
+
+    private static long write(int records, boolean single) throws IOException
+    {
+        if (last!=null) last.release();
+        last = new ByteArrayListOutputStream();
+
+        OutputStream s = last;
+        if (single)
+            s = new OutputStream() {
+                    public void write(int b) { last.write(b); }
+                };
+
+        DataOutputStream out = new DataOutputStream(s);
+        byte[] b = new byte[RECORD];
+        for (int i=0;i<records;i++)
+        {
+            b[i%RECORD] = (byte)i;
+            out.write(b);
+            out.writeLong(i);
+        }
+        return last.getSize();
+    }
+
+    private static long read(int records, boolean single) throws IOException
+    {
+        if (last==null) write(records,false);
+
+        ByteArrayListInputStream balis = last.getBalis();
+        InputStream s = balis;
+        if (single)
+            s = new InputStream() {
+                    public int read() { return balis.read(); }
+                };
+
+        DataInputStream in = new DataInputStream(s);
+        byte[] b = new byte[RECORD];
+        long sum = 0;
+        for (int i=0;i<records;i++)
+        {
+            in.readFully(b);
+            sum += b[i%RECORD]+in.readLong();
+        }
+        return sum;
+    }
+}
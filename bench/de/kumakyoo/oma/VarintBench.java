@@ -0,0 +1,130 @@
+package de.kumakyoo.oma;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+// Compares decoding of packed signed integers (zigzag varints, as
+// used for ids and coordinates of dense nodes) by the former stream
+// based decoder with PackedIntegerArray.
+//
+// The data imitates a dense nodes group: delta coded ids (mostly 1 to
+// 3 bytes) followed by delta coded longitudes and latitudes.
+//
+// Usage: ./bench.sh VarintBench [number of nodes]
+public class VarintBench
+{
+    public static void main(String[] args) throws Exception
+    {
+        int n = args.length>0?Integer.parseInt(args[0]):2_000_000;
+        byte[][] columns = createData(n);
+
+        System.out.println("Decoding "+n+" ids, longitudes and latitudes:");
+
+        double before = Bench.run("DataInputStream (former decoder)",() -> {
+                long sum = 0;
+                for (byte[] column:columns)
+                {
+                    DataInputStream in = new DataInputStream(new ByteArrayInputStream(column));
+                    long last = 0;
+                    for (int i=0;i<n;i++)
+                        sum += last += s(in);
+                }
+                return sum;
+            });
+
+        double single = Bench.run("PackedIntegerArray.s()",() -> {
+                long sum = 0;
+                for (byte[] column:columns)
+                {
+                    PackedIntegerArray in = new PackedIntegerArray(column);
+                    long last = 0;
+                    for (int i=0;i<n;i++)
+                        sum += last += in.s();
+                }
+                return sum;
+            });
+
+        long[] dst = new long[n];
+        double bulk = Bench.run("PackedIntegerArray.deltas()",() -> {
+                long sum = 0;
+                for (byte[] column:columns)
+                {
+                    new PackedIntegerArray(column).deltas(dst,n);
+                    for (int i=0;i<n;i++)
+                        sum += dst[i];
+                }
+                return sum;
+            });
+
+        Bench.compare("speedup of s()",before,single);
+        Bench.compare("speedup of deltas()",before,bulk);
+        Bench.done();
+    }
+
+    //////////////////////////////////////////////////////////////////
+
+    private static byte[][] createData(int n)
+    {
+        Random r = new Random(42);
+
+        ByteArrayOutputStream ids = new ByteArrayOutputStream();
+        ByteArrayOutputStream lons = new ByteArrayOutputStream();
+        ByteArrayOutputStream lats = new ByteArrayOutputStream();
+
+        for (int i=0;i<n;i++)
+        {
+            // Most ids follow directly, some after small or large gaps.
+            int p = r.nextInt(100);
+            long gap = p<70?1:p<95?2+r.nextInt(100):100+r.nextInt(100000);
+            put(ids,gap);
+
+            put(lons,(long)(r.nextGaussian()*3000));
+            put(lats,(long)(r.nextGaussian()*2000));
+        }
+
+        return new byte[][]{ids.toByteArray(),lons.toByteArray(),lats.toByteArray()};
+    }
+
+    private static void put(ByteArrayOutputStream out, long v)
+    {
+        v = (v<<1)^(v>>63);
+        while ((v&~0x7fL)!=0)
+        {
+            out.write((int)(v|0x80));
+            v >>>= 7;
+        }
+        out.write((int)v);
+    }
+
+    // The decoder used before PackedIntegerArray, as it was in
+    // PackedIntegerReader.
+    private static long s(DataInputStream in) throws IOException
+    {
+        long val = 0;
+        long fak = 1;
+        boolean first = true;
+        boolean sign = false;
+
+        while (true)
+        {
+            int next = in.readUnsignedByte();
+
+            if (first)
+            {
+                sign = (next&0x01)==0x01;
+                next = (next&0x80) + ((next&0x7f)>>1);
+            }
+
+            val += (next&0x7f)*fak;
+            if (next<0x80) break;
+
+            fak *= first?0x40:0x80;
+
+            first = false;
+        }
+        return sign?(-val-1):val;
+    }
+}
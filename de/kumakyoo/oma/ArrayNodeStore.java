@@ -0,0 +1,70 @@
+package de.kumakyoo.oma;
+
+// Nodes are kept in three arrays, sorted by id. Lookup is done with
+// an IdIndex, which is built on the first lookup after adding nodes.
+// The capacity is limited by the available heap.
+public class ArrayNodeStore extends NodeStore
+{
+    private long[] ids;
+    private int[] lon;
+    private int[] lat;
+    private int c;
+
+    // Built on the first lookup. Lookups may run concurrently.
+    private volatile IdIndex index;
+
+    public ArrayNodeStore(int capacity)
+    {
+        ids = new long[capacity];
+        lon = new int[capacity];
+        lat = new int[capacity];
+    }
+
+    public boolean isFull()
+    {
+        return c==ids.length;
+    }
+
+    public void add(long id, int lon, int lat)
+    {
+        ids[c] = id;
+        this.lon[c] = lon;
+        this.lat[c] = lat;
+        c++;
+        if (index!=null)
+            index = null;
+    }
+
+    public long get(long id)
+    {
+        IdIndex index = this.index;
+        if (index==null)
+            this.index = index = new IdIndex(ids,c);
+
+        int pos = index.find(id);
+        return pos<0?NOT_FOUND:pack(lon[pos],lat[pos]);
+    }
+
+    public long size()
+    {
+        return c;
+    }
+
+    public long capacity()
+    {
+        return ids.length;
+    }
+
+    public void clear()
+    {
+        c = 0;
+        index = null;
+    }
+
+    public void close()
+    {
+        ids = null;
+        lon = lat = null;
+        index = null;
+    }
+}
@@ -0,0 +1,168 @@
+package de.kumakyoo.oma;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+// Writes to an output stream on a background thread. Data is
+// collected in buffers. Full buffers are queued and written by a
+// single I/O thread, shared by all streams, so the caller can go on
+// while the data is written to disk. At most MAX_PENDING buffers per
+// stream may be queued. flush() waits, until everything is written.
+// writeAt() queues a write to an earlier position of the file, so
+// small changes there need not wait for the queue to be written.
+//
+// Buffers are taken on the first write and given back after writing
+// and on close(). A few of them are kept for reuse by all streams.
+// Still, each stream may use up to MAX_PENDING+1 buffers, so this is
+// meant for a few large files only.
+public class AsyncOutputStream extends OutputStream
+{
+    private static final int BUFFER_SIZE = 1<<18;
+    private static final int MAX_PENDING = 4;
+    private static final int MAX_FREE = 2*MAX_PENDING;
+
+    private static ExecutorService io = null;
+    private static ArrayBlockingQueue<byte[]> free = new ArrayBlockingQueue<>(MAX_FREE);
+
+    private OutputStream out;
+
+    private byte[] buf;
+    private int count;
+
+    private Semaphore pending = new Semaphore(MAX_PENDING);
+    private volatile IOException error;
+
+    public AsyncOutputStream(OutputStream out)
+    {
+        this.out = out;
+    }
+
+    public void write(int b) throws IOException
+    {
+        if (buf==null || count==buf.length)
+            next();
+        buf[count++] = (byte)b;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        while (len>0)
+        {
+            if (buf==null || count==buf.length)
+                next();
+
+            int l = Math.min(len,buf.length-count);
+            System.arraycopy(b,off,buf,count,l);
+            count += l;
+            off += l;
+            len -= l;
+        }
+    }
+
+    // Writes b at position pos of fc, which has to be the channel of
+    // the underlying stream. This happens after all data written
+    // before. The position of the stream is not changed.
+    public void writeAt(FileChannel fc, byte[] b, long pos) throws IOException
+    {
+        if (count>0)
+            send();
+
+        queue(null,() -> {
+                ByteBuffer bb = ByteBuffer.wrap(b);
+                while (bb.hasRemaining())
+                    fc.write(bb,pos+bb.position());
+            });
+    }
+
+    public void flush() throws IOException
+    {
+        if (count>0)
+            send();
+
+        try {
+            pending.acquire(MAX_PENDING);
+            pending.release(MAX_PENDING);
+        } catch (InterruptedException e) { throw new IOException(e); }
+
+        if (error!=null) throw error;
+        out.flush();
+    }
+
+    public void close() throws IOException
+    {
+        flush();
+        if (buf!=null)
+            free.offer(buf);
+        buf = null;
+        out.close();
+    }
+
+    //////////////////////////////////////////////////////////////////
+
+    private void next() throws IOException
+    {
+        if (buf!=null)
+            send();
+
+        buf = free.poll();
+        if (buf==null)
+            buf = new byte[BUFFER_SIZE];
+        count = 0;
+    }
+
+    private void send() throws IOException
+    {
+        byte[] data = buf;
+        int len = count;
+        queue(data,() -> out.write(data,0,len));
+
+        buf = null;
+        count = 0;
+    }
+
+    private interface Job
+    {
+        void run() throws IOException;
+    }
+
+    // Queues job for the I/O thread. Afterwards data (if not null) is
+    // given back to the pool of buffers.
+    private void queue(byte[] data, Job job) throws IOException
+    {
+        if (error!=null) throw error;
+
+        try {
+            pending.acquire();
+        } catch (InterruptedException e) { throw new IOException(e); }
+
+        executor().execute(() -> {
+                try {
+                    if (error==null)
+                        job.run();
+                } catch (IOException e) { error = e; }
+                finally
+                {
+                    if (data!=null)
+                        free.offer(data);
+                    pending.release();
+                }
+            });
+    }
+
+    private static synchronized ExecutorService executor()
+    {
+        if (io==null)
+            io = Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r,"writer");
+                    t.setDaemon(true);
+                    return t;
+                });
+        return io;
+    }
+}
@@ -0,0 +1,136 @@
+package de.kumakyoo.oma;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.io.IOException;
+
+// Files are read in blocks (blobs in PBF, chunks of datasets in O5M,
+// chunks of elements in XML). The raw data of the blocks is read by a
+// single I/O thread and decoded by a pool of worker threads. The
+// futures of the workers are queued in the order of the blocks in
+// the file. Thus the elements are handed out in file order, although
+// they are decoded concurrently. With only one thread, everything is
+// done by the calling thread.
+abstract public class BlockReader extends OSMReader
+{
+    // Number of blocks, that may be read ahead per worker thread.
+    private static final int BLOCKS_PER_THREAD = 2;
+
+    private List<Element> block = null;
+    private int block_pos = 0;
+    private boolean finished = false;
+
+    private ExecutorService workers = null;
+    private BlockingQueue<Future<List<Element>>> queue = null;
+    private Thread io = null;
+
+    // Reads the raw data of the next block and returns a future of
+    // its elements, or null at the end of the file. Decoding is
+    // started using the given executor.
+    abstract protected Future<List<Element>> readBlock(Executor exec) throws IOException;
+
+    public Element nextBatch() throws IOException
+    {
+        while (block==null || block_pos>=block.size())
+        {
+            if (finished) return null;
+
+            block = nextBlock();
+            block_pos = 0;
+            if (block==null)
+            {
+                finished = true;
+                return null;
+            }
+        }
+
+        return block.get(block_pos++);
+    }
+
+    //////////////////////////////////////////////////////////////////
+
+    protected void startPipeline(String name)
+    {
+        workers = Executors.newFixedThreadPool(Oma.threads,r -> {
+                Thread t = new Thread(r,name+" worker");
+                t.setDaemon(true);
+                return t;
+            });
+        queue = new ArrayBlockingQueue<>(BLOCKS_PER_THREAD*Oma.threads);
+
+        io = new Thread(this::readBlocks,name+" reader");
+        io.setDaemon(true);
+        io.start();
+    }
+
+    protected void stopPipeline()
+    {
+        if (io!=null)
+        {
+            io.interrupt();
+            workers.shutdownNow();
+        }
+    }
+
+    private void readBlocks()
+    {
+        try {
+            try {
+                while (true)
+                {
+                    Future<List<Element>> f = readBlock(workers);
+                    if (f==null) break;
+                    queue.put(f);
+                }
+                queue.put(CompletableFuture.completedFuture(null));
+            } catch (IOException|RuntimeException|Error e) { queue.put(CompletableFuture.failedFuture(e)); }
+        } catch (InterruptedException e) {}
+    }
+
+    private List<Element> nextBlock() throws IOException
+    {
+        try {
+            if (queue==null)
+            {
+                Future<List<Element>> f = readBlock(Runnable::run);
+                return f==null?null:f.get();
+            }
+
+            return queue.take().get();
+        } catch (InterruptedException e) { throw new IOException(e); }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error)e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // Runs task using exec after the future after (if not null) has
+    // been completed.
+    protected CompletableFuture<List<Element>> submit(Callable<List<Element>> task, CompletableFuture<?> after, Executor exec)
+    {
+        CompletableFuture<List<Element>> erg = new CompletableFuture<>();
+        Runnable r = () -> {
+            try {
+                erg.complete(task.call());
+            } catch (Throwable e) { erg.completeExceptionally(e); }
+        };
+
+        if (after==null)
+            exec.execute(r);
+        else
+            after.whenCompleteAsync((v,e) -> r.run(),exec);
+        return erg;
+    }
+}
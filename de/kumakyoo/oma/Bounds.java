@@ -41,18 +41,23 @@ public class Bounds extends Element
     }
 
     public void addNode(OSMNode n)
+    {
+        addNode(n.lon,n.lat);
+    }
+
+    public void addNode(int lon, int lat)
     {
         if (minlon==Integer.MAX_VALUE)
         {
-            minlon = maxlon = n.lon;
-            minlat = maxlat = n.lat;
+            minlon = maxlon = lon;
+            minlat = maxlat = lat;
             return;
         }
 
-        if (n.lon<minlon) minlon = n.lon;
-        if (n.lon>maxlon) maxlon = n.lon;
-        if (n.lat<minlat) minlat = n.lat;
-        if (n.lat>maxlat) maxlat = n.lat;
+        if (lon<minlon) minlon = lon;
+        if (lon>maxlon) maxlon = lon;
+        if (lat<minlat) minlat = lat;
+        if (lat>maxlat) maxlat = lat;
     }
 
     public boolean contains(int lon, int lat)
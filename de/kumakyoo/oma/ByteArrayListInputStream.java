@@ -1,18 +1,19 @@
 package de.kumakyoo.oma;
 
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 public class ByteArrayListInputStream extends InputStream
 {
     static final int MAX_ARRAY = ByteArrayListOutputStream.MAX_ARRAY;
 
-    List<byte[]> list;
+    List<ByteBuffer> list;
     long max;
     long pos;
     int id;
 
-    public ByteArrayListInputStream(List<byte[]> list, long max, int id)
+    public ByteArrayListInputStream(List<ByteBuffer> list, long max, int id)
     {
         this.list = list;
         this.max = max;
@@ -29,12 +30,43 @@ public class ByteArrayListInputStream extends InputStream
     {
         if (pos>=max) return -1;
 
-        int erg = list.get((int)(pos/MAX_ARRAY))[(int)(pos%MAX_ARRAY)];
+        int erg = list.get((int)(pos/MAX_ARRAY)).get((int)(pos%MAX_ARRAY));
         if (erg<0) erg += 256;
         pos++;
         return erg;
     }
 
+    public int read(byte[] b, int off, int len)
+    {
+        if (len==0) return 0;
+        if (pos>=max) return -1;
+
+        len = (int)Math.min(len,max-pos);
+        int count = len;
+        while (len>0)
+        {
+            int o = (int)(pos%MAX_ARRAY);
+            int l = Math.min(len,MAX_ARRAY-o);
+            list.get((int)(pos/MAX_ARRAY)).get(o,b,off,l);
+            pos += l;
+            off += l;
+            len -= l;
+        }
+        return count;
+    }
+
+    public long skip(long n)
+    {
+        n = Math.max(0,Math.min(n,max-pos));
+        pos += n;
+        return n;
+    }
+
+    public int available()
+    {
+        return (int)Math.min(Integer.MAX_VALUE,Math.max(0,max-pos));
+    }
+
     public long getPosition()
     {
         return pos;
@@ -2,63 +2,109 @@ package de.kumakyoo.oma;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.HashMap;
 
 public class ByteArrayListOutputStream extends OutputStream
 {
     static final int MAX_ARRAY = 1000000;
+    private static final int COPY_BUFFER_SIZE = 1<<16;
 
-    static byte[][] store = null;
+    static ByteBuffer[] store = null;
     static int[] store_id;
     static int nextid = 1;
 
-    static void malloc(int n)
+    // Free arrays are kept on a stack, arrays in use are linked per
+    // owner. So getting and freeing an array does not need to search
+    // the store.
+    static int[] free;
+    static int free_count;
+    static int[] next;
+    static Map<Integer,Integer> first = new HashMap<>();
+
+    // Arrays outside of the heap are allocated only once and kept
+    // between the steps, because the memory of direct buffers is not
+    // returned before garbage collection.
+    static ByteBuffer[] direct_store = null;
+
+    // Counts the arrays handed out, to tell which streams grew lately.
+    static long clock = 0;
+
+    static void malloc(int n, boolean direct)
     {
         if (store!=null) mfree();
-        store = new byte[n][MAX_ARRAY];
+        if (direct)
+        {
+            if (direct_store==null || direct_store.length!=n)
+            {
+                direct_store = null;
+                direct_store = new ByteBuffer[n];
+                for (int i=0;i<n;i++)
+                    direct_store[i] = ByteBuffer.allocateDirect(MAX_ARRAY);
+            }
+            store = direct_store;
+        }
+        else
+        {
+            store = new ByteBuffer[n];
+            for (int i=0;i<n;i++)
+                store[i] = ByteBuffer.wrap(new byte[MAX_ARRAY]);
+        }
         store_id = new int[n];
+        free = new int[n];
+        for (int i=0;i<n;i++)
+            free[i] = n-1-i;
+        free_count = n;
+        next = new int[n];
     }
 
     static void mfree()
     {
         store = null;
         store_id = null;
+        free = null;
+        free_count = 0;
+        next = null;
+        first.clear();
     }
 
-    static byte[] getArray(int id)
+    static ByteBuffer getArray(int id)
     {
-        if (store_id==null) return null;
-        for (int i=0;i<store_id.length;i++)
-            if (store_id[i]==0)
-            {
-                store_id[i] = id;
-                return store[i];
-            }
-        return null;
+        if (store_id==null || free_count==0) return null;
+
+        int i = free[--free_count];
+        store_id[i] = id;
+        Integer f = first.put(id,i);
+        next[i] = f==null?-1:f;
+        return store[i];
     }
 
     static void freeArrays(int id)
     {
-        for (int i=0;i<store_id.length;i++)
-            if (store_id[i]==id)
-                store_id[i] = 0;
+        Integer f = first.remove(id);
+        if (f==null || store_id==null) return;
+
+        for (int i=f;i>=0;i=next[i])
+        {
+            store_id[i] = 0;
+            free[free_count++] = i;
+        }
     }
 
     static int getFreeStores()
     {
-        int count = 0;
-        for (int i=0;i<store_id.length;i++)
-            if (store_id[i]==0)
-                count++;
-        return count;
+        return free_count;
     }
 
-    private List<byte[]> list;
+    private List<ByteBuffer> list;
 
     private long pos;
     private long max;
     private int id;
+    private long last_use;
 
     public ByteArrayListOutputStream()
     {
@@ -81,22 +127,56 @@ public class ByteArrayListOutputStream extends OutputStream
     public void write(int val)
     {
         while (pos/MAX_ARRAY>=list.size())
+        {
             list.add(getArray(id));
-        list.get((int)(pos/MAX_ARRAY))[(int)(pos%MAX_ARRAY)] = (byte)(val<128?val:val-256);
+            last_use = ++clock;
+        }
+        list.get((int)(pos/MAX_ARRAY)).put((int)(pos%MAX_ARRAY),(byte)val);
         pos++;
         if (pos>max) max = pos;
     }
 
+    public void write(byte[] b, int off, int len)
+    {
+        while (len>0)
+        {
+            while (pos/MAX_ARRAY>=list.size())
+            {
+                list.add(getArray(id));
+                last_use = ++clock;
+            }
+
+            int o = (int)(pos%MAX_ARRAY);
+            int l = Math.min(len,MAX_ARRAY-o);
+            list.get((int)(pos/MAX_ARRAY)).put(o,b,off,l);
+            pos += l;
+            off += l;
+            len -= l;
+        }
+        if (pos>max) max = pos;
+    }
+
     public void writeTo(OutputStream s) throws IOException
     {
-        pos = 0;
-        while (MAX_ARRAY*(pos+1)<max)
+        byte[] tmp = null;
+        for (long p=0;p<max;p+=MAX_ARRAY)
         {
-            s.write(list.get((int)pos));
-            pos++;
+            ByteBuffer b = list.get((int)(p/MAX_ARRAY));
+            int len = (int)Math.min(MAX_ARRAY,max-p);
+            if (b.hasArray())
+            {
+                s.write(b.array(),b.arrayOffset(),len);
+                continue;
+            }
+
+            if (tmp==null) tmp = new byte[COPY_BUFFER_SIZE];
+            for (int o=0;o<len;o+=tmp.length)
+            {
+                int l = Math.min(tmp.length,len-o);
+                b.get(o,tmp,0,l);
+                s.write(tmp,0,l);
+            }
         }
-        if (max>MAX_ARRAY*pos)
-            s.write(list.get((int)pos),0,(int)(max-MAX_ARRAY*pos));
     }
 
     public long getPosition()
@@ -115,6 +195,11 @@ public class ByteArrayListOutputStream extends OutputStream
         return max;
     }
 
+    public long getLastUse()
+    {
+        return last_use;
+    }
+
     public long getAvailableMemory()
     {
         return ((long)getFreeStores())*MAX_ARRAY+(MAX_ARRAY-pos%MAX_ARRAY)%MAX_ARRAY;
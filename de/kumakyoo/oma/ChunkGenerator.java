@@ -288,12 +288,13 @@ public class ChunkGenerator
     private void addChunk(OmaOutputStream p) throws IOException
     {
         OmaInputStream in = OmaInputStream.init(p);
-        while (true)
-        {
-            int size = in.read(buffer);
-            if (size==-1) break;
-            out.write(buffer,0,size);
-        }
+        if (!out.transferFrom(in))
+            while (true)
+            {
+                int size = in.read(buffer);
+                if (size==-1) break;
+                out.write(buffer,0,size);
+            }
         in.release();
     }
 
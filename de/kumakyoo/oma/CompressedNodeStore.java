@@ -0,0 +1,212 @@
+package de.kumakyoo.oma;
+
+// Nodes are kept in blocks of BLOCK nodes, sorted by id. The first
+// node of each block is kept in a header, the other nodes are stored
+// as differences to their predecessor (id, longitude and latitude),
+// zigzag encoded as variable length integers. Typical OSM data needs
+// about 7 bytes per node instead of 16. A lookup searches the block
+// by its first id and decodes the block up to the node.
+public class CompressedNodeStore extends NodeStore
+{
+    private static final int BLOCK = 64;
+    private static final int BYTES_PER_NODE = 7;
+    private static final int MAX_RECORD = 20;
+
+    private static final int PAGE_BITS = 24;
+    private static final int PAGE_SIZE = 1<<PAGE_BITS;
+
+    private long[] block_id;
+    private int[] block_lon;
+    private int[] block_lat;
+    private long[] block_pos;
+    private int blocks;
+
+    // Built on the first lookup. Lookups may run concurrently.
+    private volatile IdIndex index;
+
+    private byte[][] pages;
+    private int page;
+    private int off;
+
+    private long last_id;
+    private int last_lon;
+    private int last_lat;
+
+    private long c;
+    private long capacity;
+
+    // Space is reserved for about capacity nodes. If the data can be
+    // compressed better, more nodes fit.
+    public CompressedNodeStore(int capacity)
+    {
+        this.capacity = capacity;
+
+        int max_blocks = capacity/(BLOCK/2)+1;
+        block_id = new long[max_blocks];
+        block_lon = new int[max_blocks];
+        block_lat = new int[max_blocks];
+        block_pos = new long[max_blocks];
+
+        long bytes = (long)capacity*BYTES_PER_NODE;
+        pages = new byte[(int)(bytes/PAGE_SIZE)+1][];
+        for (int i=0;i<pages.length;i++)
+        {
+            pages[i] = new byte[(int)Math.min(PAGE_SIZE,Math.max(bytes,BLOCK*MAX_RECORD))];
+            bytes -= pages[i].length;
+        }
+    }
+
+    // New nodes can only be rejected at the start of a block. There
+    // is always enough space in a page for a complete block.
+    public boolean isFull()
+    {
+        if (c%BLOCK!=0) return false;
+        if (blocks==block_id.length) return true;
+        return page==pages.length-1 && pages[page].length-off<BLOCK*MAX_RECORD;
+    }
+
+    public void add(long id, int lon, int lat)
+    {
+        if (c%BLOCK==0)
+        {
+            if (pages[page].length-off<BLOCK*MAX_RECORD)
+            {
+                page++;
+                off = 0;
+            }
+
+            block_id[blocks] = id;
+            block_lon[blocks] = lon;
+            block_lat[blocks] = lat;
+            block_pos[blocks] = (long)page<<PAGE_BITS|off;
+            blocks++;
+        }
+        else
+        {
+            byte[] p = pages[page];
+            off = put(p,off,zigzag(id-last_id));
+            off = put(p,off,zigzag(lon-last_lon)&0xffffffffL);
+            off = put(p,off,zigzag(lat-last_lat)&0xffffffffL);
+        }
+
+        last_id = id;
+        last_lon = lon;
+        last_lat = lat;
+        c++;
+        if (index!=null)
+            index = null;
+    }
+
+    public long get(long id)
+    {
+        IdIndex index = this.index;
+        if (index==null)
+            this.index = index = new IdIndex(block_id,blocks);
+
+        int b = index.find(id);
+        if (b>=0) return pack(block_lon[b],block_lat[b]);
+
+        b = -b-2;
+        if (b<0) return NOT_FOUND;
+
+        byte[] p = pages[(int)(block_pos[b]>>>PAGE_BITS)];
+        int o = (int)block_pos[b]&(PAGE_SIZE-1);
+
+        long cid = block_id[b];
+        int clon = block_lon[b];
+        int clat = block_lat[b];
+
+        long n = Math.min(BLOCK,c-(long)b*BLOCK);
+        for (int i=1;i<n;i++)
+        {
+            long v = 0;
+            int shift = 0;
+            byte x;
+            do
+            {
+                x = p[o++];
+                v |= (long)(x&0x7f)<<shift;
+                shift += 7;
+            }
+            while (x<0);
+            cid += (v>>>1)^-(v&1);
+
+            v = 0;
+            shift = 0;
+            do
+            {
+                x = p[o++];
+                v |= (long)(x&0x7f)<<shift;
+                shift += 7;
+            }
+            while (x<0);
+            clon += (int)((v>>>1)^-(v&1));
+
+            v = 0;
+            shift = 0;
+            do
+            {
+                x = p[o++];
+                v |= (long)(x&0x7f)<<shift;
+                shift += 7;
+            }
+            while (x<0);
+            clat += (int)((v>>>1)^-(v&1));
+
+            if (cid==id) return pack(clon,clat);
+            if (cid>id) break;
+        }
+
+        return NOT_FOUND;
+    }
+
+    public long size()
+    {
+        return c;
+    }
+
+    public long capacity()
+    {
+        return capacity;
+    }
+
+    public void clear()
+    {
+        c = 0;
+        blocks = 0;
+        page = 0;
+        off = 0;
+        index = null;
+    }
+
+    public void close()
+    {
+        block_id = block_pos = null;
+        block_lon = block_lat = null;
+        pages = null;
+        index = null;
+    }
+
+    //////////////////////////////////////////////////////////////////
+
+    private static long zigzag(long v)
+    {
+        return (v<<1)^(v>>63);
+    }
+
+    private static int zigzag(int v)
+    {
+        return (v<<1)^(v>>31);
+    }
+
+    private static int put(byte[] p, int off, long v)
+    {
+        while ((v&~0x7fL)!=0)
+        {
+            p[off++] = (byte)(v|0x80);
+            v >>>= 7;
+        }
+        p[off++] = (byte)v;
+        return off;
+    }
+}
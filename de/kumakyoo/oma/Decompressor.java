@@ -0,0 +1,11 @@
+package de.kumakyoo.oma;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Decompresses the data of a PBF blob. rawsize is the size of the
+// uncompressed data or 0, if unknown.
+public interface Decompressor
+{
+    public byte[] decompress(ByteBuffer data, int rawsize) throws IOException;
+}
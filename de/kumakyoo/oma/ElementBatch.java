@@ -0,0 +1,153 @@
+package de.kumakyoo.oma;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+
+// A batch of elements of the same type, saved column by column. User
+// names, keys and values are indices into the string table of the
+// batch. The tags of element i are saved in kv[tags[i]] to
+// kv[tags[i+1]-1], keys and values alternating.
+//
+// Batches can be filled by a decoder directly or can be built element
+// by element using the add methods. In the latter case they can be
+// reused after calling clear().
+abstract public class ElementBatch extends Element
+{
+    int size;
+
+    long[] id;
+    int[] version;
+    long[] timestamp;
+    long[] changeset;
+    int[] uid;
+    int[] user;
+
+    int[] tags;
+    int[] kv;
+
+    String[] strings;
+    int string_count;
+
+    public ElementBatch(int capacity, String[] strings)
+    {
+        id = new long[capacity];
+        version = new int[capacity];
+        timestamp = new long[capacity];
+        changeset = new long[capacity];
+        uid = new int[capacity];
+        user = new int[capacity];
+        tags = new int[capacity+1];
+        kv = new int[0];
+
+        this.strings = strings==null?new String[16]:strings;
+        string_count = strings==null?0:strings.length;
+    }
+
+    public void clear()
+    {
+        size = 0;
+        tags[0] = 0;
+        string_count = 0;
+    }
+
+    abstract public ElementWithID get(int i);
+
+    //////////////////////////////////////////////////////////////////
+
+    public int add(long id, int version, long timestamp, long changeset, int uid, int user)
+    {
+        if (size==this.id.length)
+            grow(2*size+1);
+
+        int i = size;
+        this.id[i] = id;
+        this.version[i] = version;
+        this.timestamp[i] = timestamp;
+        this.changeset[i] = changeset;
+        this.uid[i] = uid;
+        this.user[i] = user;
+        tags[i+1] = tags[i];
+        size++;
+
+        return i;
+    }
+
+    public int add(long id, int version, long timestamp, long changeset, int uid, String user)
+    {
+        return add(id,version,timestamp,changeset,uid,addString(user));
+    }
+
+    public void addTag(int key, int value)
+    {
+        int c = tags[size];
+        if (c+2>kv.length)
+            kv = Arrays.copyOf(kv,2*kv.length+16);
+        kv[c] = key;
+        kv[c+1] = value;
+        tags[size] = c+2;
+    }
+
+    public void addTag(String key, String value)
+    {
+        addTag(addString(key),addString(value));
+    }
+
+    public int addString(String s)
+    {
+        if (string_count==strings.length)
+            strings = Arrays.copyOf(strings,2*strings.length);
+        strings[string_count] = s;
+        return string_count++;
+    }
+
+    protected void grow(int capacity)
+    {
+        id = Arrays.copyOf(id,capacity);
+        version = Arrays.copyOf(version,capacity);
+        timestamp = Arrays.copyOf(timestamp,capacity);
+        changeset = Arrays.copyOf(changeset,capacity);
+        uid = Arrays.copyOf(uid,capacity);
+        user = Arrays.copyOf(user,capacity);
+        tags = Arrays.copyOf(tags,capacity+1);
+    }
+
+    //////////////////////////////////////////////////////////////////
+
+    public int tagCount(int i)
+    {
+        return (tags[i+1]-tags[i])/2;
+    }
+
+    public String key(int i, int j)
+    {
+        return strings[kv[tags[i]+2*j]];
+    }
+
+    public String value(int i, int j)
+    {
+        return strings[kv[tags[i]+2*j+1]];
+    }
+
+    public String user(int i)
+    {
+        return strings[user[i]];
+    }
+
+    public String getTag(int i, String key)
+    {
+        String erg = null;
+        for (int j=0;j<tagCount(i);j++)
+            if (key.equals(key(i,j)))
+                erg = value(i,j);
+        return erg;
+    }
+
+    protected Map<String, String> tagMap(int i)
+    {
+        Map<String, String> erg = new HashMap<>();
+        for (int j=0;j<tagCount(i);j++)
+            erg.put(key(i,j),value(i,j));
+        return erg;
+    }
+}
@@ -6,6 +6,7 @@ import java.util.Set;
 import java.util.HashSet;
 import java.util.stream.Stream;
 import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicLong;
 import java.io.IOException;
 
 public class ElementWithID extends Element
@@ -21,7 +22,7 @@ public class ElementWithID extends Element
     Map<String, String> tags;
     Member[] members;
 
-    private static long discarded = 0;
+    private static final AtomicLong discarded = new AtomicLong();
 
     // list taken von ID and JOSM
     private static final Set<String> discardable =
@@ -93,12 +94,22 @@ public class ElementWithID extends Element
         this.tags = tags;
         int count = this.tags.size();
         this.tags.keySet().removeIf(key -> discardable.contains(key));
-        discarded += count-this.tags.size();
+        discarded.addAndGet(count-this.tags.size());
     }
 
     public static long discardedTags()
     {
-        return discarded;
+        return discarded.get();
+    }
+
+    public static boolean isDiscardable(String key)
+    {
+        return discardable.contains(key);
+    }
+
+    public static void addDiscardedTags(long count)
+    {
+        discarded.addAndGet(count);
     }
 
     //////////////////////////////////////////////////////////////////
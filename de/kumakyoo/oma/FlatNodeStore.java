@@ -0,0 +1,119 @@
+package de.kumakyoo.oma;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Arrays;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Nodes are kept in a sparse, memory mapped file, indexed directly by
+// id. Each node uses 8 bytes at position 8*id. The file is mapped in
+// windows, which are created when the first node of the window is
+// added. Thus neither the heap nor the size of arrays limit the number
+// of nodes, and lookup does not need any search.
+//
+// Unused entries of the file are zero. To distinguish them from a node
+// at 0/0 the latitude is saved with the sign bit flipped. Nodes with
+// negative ids (only found in unsaved editor files) are kept in a map.
+//
+// The file is opened with DELETE_ON_CLOSE, because Java cannot unmap
+// windows explicitly. On Unix-like systems the file is removed right
+// after opening, so it is never left behind. On Windows it is removed
+// after closing, once the windows have been garbage collected.
+public class FlatNodeStore extends NodeStore
+{
+    private static final int WINDOW_BITS = 27;
+    private static final long WINDOW_MASK = (1L<<WINDOW_BITS)-1;
+
+    private Path file;
+    private int generation;
+    private FileChannel fc;
+    private MappedByteBuffer[] windows = new MappedByteBuffer[0];
+    private Map<Long, Long> negative = new HashMap<>();
+    private long c;
+
+    public FlatNodeStore(Path file) throws IOException
+    {
+        this.file = file;
+        open(file);
+    }
+
+    private void open(Path file) throws IOException
+    {
+        fc = FileChannel.open(file,StandardOpenOption.CREATE_NEW,StandardOpenOption.SPARSE,
+                              StandardOpenOption.READ,StandardOpenOption.WRITE,
+                              StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    public boolean isFull()
+    {
+        return false;
+    }
+
+    public void add(long id, int lon, int lat) throws IOException
+    {
+        c++;
+        if (id<0)
+        {
+            negative.put(id,pack(lon,lat));
+            return;
+        }
+
+        int w = (int)(id>>>WINDOW_BITS);
+        if (w>=windows.length)
+            windows = Arrays.copyOf(windows,w+1);
+        if (windows[w]==null)
+            windows[w] = fc.map(FileChannel.MapMode.READ_WRITE,(long)w<<(WINDOW_BITS+3),8L<<WINDOW_BITS);
+
+        windows[w].putLong((int)(id&WINDOW_MASK)<<3,pack(lon,lat^Integer.MIN_VALUE));
+    }
+
+    public long get(long id)
+    {
+        if (id<0)
+        {
+            Long loc = negative.get(id);
+            return loc==null?NOT_FOUND:loc;
+        }
+
+        int w = (int)(id>>>WINDOW_BITS);
+        if (w>=windows.length || windows[w]==null) return NOT_FOUND;
+
+        long loc = windows[w].getLong((int)(id&WINDOW_MASK)<<3);
+        if (loc==0) return NOT_FOUND;
+        return pack(lon(loc),lat(loc)^Integer.MIN_VALUE);
+    }
+
+    public long size()
+    {
+        return c;
+    }
+
+    public long capacity()
+    {
+        return Long.MAX_VALUE;
+    }
+
+    // Starts with a new, empty file. The old one cannot be reused,
+    // because it may still be mapped.
+    public void clear() throws IOException
+    {
+        windows = new MappedByteBuffer[0];
+        negative.clear();
+        c = 0;
+
+        fc.close();
+        generation++;
+        open(file.resolveSibling(file.getFileName()+"_"+generation));
+    }
+
+    public void close() throws IOException
+    {
+        windows = null;
+        negative = null;
+        fc.close();
+    }
+}
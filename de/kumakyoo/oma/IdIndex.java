@@ -0,0 +1,56 @@
+package de.kumakyoo.oma;
+
+import java.util.Arrays;
+
+// Index over a sorted array of ids. The range of ids is cut into
+// blocks of equal size and for every block the position of its first
+// id is kept. A lookup only has to search the few ids of a single
+// block. As ids in OSM files are rather dense, most blocks contain
+// about IDS_PER_BLOCK ids. Uneven distributions are never worse than
+// a binary search over the whole array.
+public class IdIndex
+{
+    private static final int IDS_PER_BLOCK = 16;
+
+    private long[] ids;
+    private int c;
+
+    private long min;
+    private int shift;
+    private int[] start;
+
+    public IdIndex(long[] ids, int c)
+    {
+        this.ids = ids;
+        this.c = c;
+        if (c==0) return;
+
+        min = ids[0];
+        long range = ids[c-1]-min;
+
+        int blocks = c/IDS_PER_BLOCK+1;
+        while ((range>>>shift)>=blocks)
+            shift++;
+
+        int nb = (int)(range>>>shift)+1;
+        start = new int[nb+1];
+        int pos = 0;
+        for (int b=0;b<=nb;b++)
+        {
+            while (pos<c && ((ids[pos]-min)>>>shift)<b)
+                pos++;
+            start[b] = pos;
+        }
+    }
+
+    // Returns the position of id or, like Arrays.binarySearch,
+    // -(insertion point)-1.
+    public int find(long id)
+    {
+        if (c==0 || id<min) return -1;
+        if (id>ids[c-1]) return -c-1;
+
+        int b = (int)((id-min)>>>shift);
+        return Arrays.binarySearch(ids,start[b],start[b+1],id);
+    }
+}
@@ -0,0 +1,68 @@
+package de.kumakyoo.oma;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Decoder for the LZ4 block format (not the frame format), as used in
+// PBF files. The size of the uncompressed data has to be known.
+public class LZ4
+{
+    public static byte[] decompress(ByteBuffer src, int rawsize) throws IOException
+    {
+        if (rawsize<=0) throw new IOException("missing size of LZ4 compressed data");
+
+        byte[] dst = new byte[rawsize];
+        int sp = src.position();
+        int send = src.limit();
+        int dp = 0;
+
+        try {
+            while (true)
+            {
+                int token = src.get(sp++)&0xff;
+
+                int len = token>>>4;
+                if (len==15)
+                {
+                    int next;
+                    do {
+                        next = src.get(sp++)&0xff;
+                        len += next;
+                    } while (next==255);
+                }
+                src.get(sp,dst,dp,len);
+                sp += len;
+                dp += len;
+
+                // the last sequence contains literals only
+                if (sp>=send) break;
+
+                int offset = (src.get(sp)&0xff)|(src.get(sp+1)&0xff)<<8;
+                sp += 2;
+                if (offset==0 || offset>dp) throw new IOException("corrupt LZ4 data");
+
+                len = token&0x0f;
+                if (len==15)
+                {
+                    int next;
+                    do {
+                        next = src.get(sp++)&0xff;
+                        len += next;
+                    } while (next==255);
+                }
+                len += 4;
+
+                if (dp+len>dst.length) throw new IOException("corrupt LZ4 data");
+                if (offset>=len)
+                    System.arraycopy(dst,dp-offset,dst,dp,len);
+                else
+                    for (int i=0;i<len;i++)
+                        dst[dp+i] = dst[dp-offset+i];
+                dp += len;
+            }
+        } catch (IndexOutOfBoundsException e) { throw new IOException("corrupt LZ4 data"); }
+
+        if (dp!=rawsize) throw new IOException("corrupt LZ4 data");
+        return dst;
+    }
+}
@@ -0,0 +1,123 @@
+package de.kumakyoo.oma;
+
+import java.io.IOException;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Reads a file through memory mapped windows. Larger parts of the
+// file can be handed out as ByteBuffers without copying them. These
+// buffers stay valid after the window has been moved on.
+public class MappedInputStream extends InputStream
+{
+    private static final long WINDOW = 1L<<30;
+
+    private FileChannel fc;
+    private long size;
+
+    private MappedByteBuffer buf;
+    private long start;
+
+    public MappedInputStream(Path filename) throws IOException
+    {
+        fc = FileChannel.open(filename,StandardOpenOption.READ);
+        size = fc.size();
+        map(0,0);
+    }
+
+    public void close() throws IOException
+    {
+        buf = null;
+        fc.close();
+    }
+
+    private void map(long pos, int min) throws IOException
+    {
+        start = pos;
+        buf = fc.map(FileChannel.MapMode.READ_ONLY,pos,Math.min(Math.max(WINDOW,min),size-pos));
+    }
+
+    // Moves the window, if the next len bytes are not completely
+    // inside. Returns false, if the file is too short.
+    private boolean ensure(int len) throws IOException
+    {
+        if (buf.remaining()>=len) return true;
+
+        long pos = start+buf.position();
+        if (pos+len>size) return false;
+        map(pos,len);
+        return true;
+    }
+
+    //////////////////////////////////////////////////////////////////
+
+    public int read() throws IOException
+    {
+        if (!ensure(1)) return -1;
+        return buf.get()&0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len==0) return 0;
+        if (!ensure(1)) return -1;
+
+        len = Math.min(len,buf.remaining());
+        buf.get(b,off,len);
+        return len;
+    }
+
+    public long skip(long n) throws IOException
+    {
+        long pos = start+buf.position();
+        n = Math.max(0,Math.min(n,size-pos));
+        if (n<=buf.remaining())
+            buf.position(buf.position()+(int)n);
+        else
+            map(pos+n,0);
+        return n;
+    }
+
+    public int available()
+    {
+        return (int)Math.min(Integer.MAX_VALUE,size-start-buf.position());
+    }
+
+    public long getPosition()
+    {
+        return start+buf.position();
+    }
+
+    // Moves the window only, if pos is outside.
+    public void setPosition(long pos) throws IOException
+    {
+        if (pos>=start && pos<=start+buf.limit())
+            buf.position((int)(pos-start));
+        else
+            map(Math.min(pos,size),0);
+    }
+
+    //////////////////////////////////////////////////////////////////
+
+    // Returns the next len bytes without copying them.
+    public ByteBuffer slice(int len) throws IOException
+    {
+        if (len<0 || !ensure(len)) throw new EOFException();
+
+        ByteBuffer erg = buf.slice(buf.position(),len);
+        buf.position(buf.position()+len);
+        return erg;
+    }
+
+    // Returns up to len bytes without moving on. Used for
+    // recognizing the type of the file.
+    public ByteBuffer peek(int len) throws IOException
+    {
+        ensure(len);
+        return buf.slice(buf.position(),Math.min(len,buf.remaining()));
+    }
+}
@@ -0,0 +1,485 @@
+package de.kumakyoo.oma;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+
+// Memberships of nodes, ways and relations in collections, kept in
+// primitive arrays. For each type of member the memberships are
+// sorted by member id. Memberships of the same member keep the order
+// in which they were added. Roles are saved in a dictionary.
+//
+// Elements are typically looked up in ascending order. In this case
+// lookup just moves a cursor on (merge join), otherwise binary search
+// is used.
+//
+// If there are more memberships than capacity, they are sorted and
+// saved as runs. Lookup then merges the runs of a type while moving
+// on, so memory does not grow with the number of memberships. For
+// every BLOCK memberships of a run, the first id and its position are
+// kept. Going backwards or jumping far ahead (which happens with
+// unsorted input files) moves each run to the block containing the id,
+// instead of merging all runs again from the beginning.
+public class MemberIndex
+{
+    private static final String TYPES = "nwr";
+    private static final int BLOCK = 64;
+
+    private int capacity;
+
+    private byte[] type = new byte[1024];
+    private long[] member = new long[1024];
+    private long[] relation = new long[1024];
+    private int[] role = new int[1024];
+    private int[] nr = new int[1024];
+    private int c;
+
+    private List<String> roles = new ArrayList<>();
+    private Map<String,Integer> role_ids = new HashMap<>();
+
+    private long[][] ids = new long[TYPES.length()][];
+    private int[][] entry = new int[TYPES.length()][];
+    private int[] cursor = new int[TYPES.length()];
+
+    private List<List<OmaOutputStream>> runs = new ArrayList<>();
+    private List<List<Integer>> run_size = new ArrayList<>();
+    private List<List<long[]>> block_id = new ArrayList<>();
+    private List<List<long[]>> block_pos = new ArrayList<>();
+
+    private int stream_type = -1;
+    private long last_id;
+    private OmaInputStream[] in;
+    private int[] left;
+    private boolean[] done;
+    private long[][] bid;
+    private long[][] bpos;
+    private long[] head_id;
+    private long[] head_relation;
+    private int[] head_role;
+    private int[] head_nr;
+    private int[] heap;
+    private int heap_size;
+
+    private long[] found_relation = new long[16];
+    private int[] found_role = new int[16];
+    private int[] found_nr = new int[16];
+    private int found;
+
+    public MemberIndex(int capacity)
+    {
+        this.capacity = capacity;
+        for (int t=0;t<TYPES.length();t++)
+        {
+            runs.add(new ArrayList<>());
+            run_size.add(new ArrayList<>());
+            block_id.add(new ArrayList<>());
+            block_pos.add(new ArrayList<>());
+        }
+    }
+
+    public void add(char t, long id, long rid, String r, int n) throws IOException
+    {
+        if (c==capacity)
+            saveRuns();
+
+        if (c==type.length)
+        {
+            int len = (int)Math.min(capacity,c+(long)(c>>1));
+            type = Arrays.copyOf(type,len);
+            member = Arrays.copyOf(member,len);
+            relation = Arrays.copyOf(relation,len);
+            role = Arrays.copyOf(role,len);
+            nr = Arrays.copyOf(nr,len);
+        }
+
+        Integer rnr = role_ids.get(r);
+        if (rnr==null)
+        {
+            rnr = roles.size();
+            roles.add(r);
+            role_ids.put(r,rnr);
+        }
+
+        type[c] = (byte)t;
+        member[c] = id;
+        relation[c] = rid;
+        role[c] = rnr;
+        nr[c] = n;
+        c++;
+    }
+
+    // Sorts the memberships. Must be called after all memberships
+    // have been added.
+    public void finish() throws IOException
+    {
+        role_ids = null;
+
+        if (!runs.get(0).isEmpty() || !runs.get(1).isEmpty() || !runs.get(2).isEmpty())
+        {
+            if (c>0) saveRuns();
+            type = null;
+            member = relation = null;
+            role = nr = null;
+            return;
+        }
+
+        sort();
+        type = null;
+        member = null;
+    }
+
+    // Returns the position of the first membership of the element or
+    // -1, if the element is not a member of any collection.
+    public int find(char t, long id) throws IOException
+    {
+        int ti = TYPES.indexOf(t);
+        if (ids[ti]==null)
+            return stream(ti,id);
+
+        long[] k = ids[ti];
+        int p = cursor[ti];
+
+        boolean back = p>0 && k[p-1]>=id;
+        int from = back?0:p;
+        for (int i=0;i<8 && !back && p<k.length && k[p]<id;i++)
+            p++;
+
+        if (back || (p<k.length && k[p]<id))
+        {
+            p = Arrays.binarySearch(k,from,k.length,id);
+            if (p<0) p = -p-1;
+            while (p>from && k[p-1]==id) p--;
+        }
+
+        cursor[ti] = p;
+        return p<k.length && k[p]==id?p:-1;
+    }
+
+    // Writes the memberships, starting at pos, as found by find.
+    public void write(OmaOutputStream out, char t, int pos) throws IOException
+    {
+        if (pos<0)
+        {
+            out.writeSmallInt(0);
+            return;
+        }
+
+        int ti = TYPES.indexOf(t);
+        if (ids[ti]==null)
+        {
+            out.writeSmallInt(found);
+            for (int i=0;i<found;i++)
+            {
+                out.writeLong(found_relation[i]);
+                out.writeString(roles.get(found_role[i]));
+                out.writeSmallInt(found_nr[i]);
+            }
+            return;
+        }
+
+        long[] k = ids[ti];
+        int end = pos+1;
+        while (end<k.length && k[end]==k[pos]) end++;
+
+        out.writeSmallInt(end-pos);
+        for (int i=pos;i<end;i++)
+        {
+            int e = entry[ti][i];
+            out.writeLong(relation[e]);
+            out.writeString(roles.get(role[e]));
+            out.writeSmallInt(nr[e]);
+        }
+    }
+
+    public void release() throws IOException
+    {
+        closeStreams();
+        for (List<OmaOutputStream> l:runs)
+            for (OmaOutputStream run:l)
+                OmaInputStream.init(run).release();
+        runs.clear();
+        block_id.clear();
+        block_pos.clear();
+    }
+
+    //////////////////////////////////////////////////////////////////
+
+    // Sorts the memberships in memory by type and member id.
+    private void sort()
+    {
+        int[] count = new int[TYPES.length()];
+        for (int i=0;i<c;i++)
+            count[TYPES.indexOf(type[i])]++;
+
+        long[][] pos = new long[TYPES.length()][];
+        for (int t=0;t<TYPES.length();t++)
+        {
+            ids[t] = new long[count[t]];
+            pos[t] = new long[count[t]];
+            count[t] = 0;
+        }
+
+        for (int i=0;i<c;i++)
+        {
+            int t = TYPES.indexOf(type[i]);
+            ids[t][count[t]] = member[i];
+            pos[t][count[t]] = i;
+            count[t]++;
+        }
+
+        for (int t=0;t<TYPES.length();t++)
+        {
+            long[] k = ids[t];
+            long[] p = pos[t];
+            PairSorter.sort(k,p,0,k.length);
+
+            // Sorting is not stable: restore the order of memberships
+            // of the same member.
+            for (int i=0;i<k.length;)
+            {
+                int j = i+1;
+                while (j<k.length && k[j]==k[i]) j++;
+                if (j-i>1) Arrays.sort(p,i,j);
+                i = j;
+            }
+
+            entry[t] = new int[p.length];
+            for (int i=0;i<p.length;i++)
+                entry[t][i] = (int)p[i];
+            pos[t] = null;
+        }
+    }
+
+    private void saveRuns() throws IOException
+    {
+        sort();
+
+        for (int t=0;t<TYPES.length();t++)
+        {
+            if (ids[t].length>0)
+            {
+                OmaOutputStream out = OmaOutputStream.init(Tools.tmpFile("members_"+TYPES.charAt(t)+"_"+runs.get(t).size()));
+                long[] first = new long[(ids[t].length+BLOCK-1)/BLOCK];
+                long[] pos = new long[first.length];
+                long p = 0;
+                for (int i=0;i<ids[t].length;i++)
+                {
+                    int e = entry[t][i];
+                    if (i%BLOCK==0)
+                    {
+                        first[i/BLOCK] = ids[t][i];
+                        pos[i/BLOCK] = p;
+                    }
+                    // Size of the record, as written below.
+                    p += 20+(nr[e]<255?1:nr[e]<65535?3:7);
+                    out.writeLong(ids[t][i]);
+                    out.writeLong(relation[e]);
+                    out.writeInt(role[e]);
+                    out.writeSmallInt(nr[e]);
+                }
+                out.close();
+
+                runs.get(t).add(out);
+                run_size.get(t).add(ids[t].length);
+                block_id.get(t).add(first);
+                block_pos.get(t).add(pos);
+            }
+
+            ids[t] = null;
+            entry[t] = null;
+        }
+
+        c = 0;
+    }
+
+    //////////////////////////////////////////////////////////////////
+
+    private int stream(int ti, long id) throws IOException
+    {
+        // The memberships of the last element have already been
+        // taken from the runs, but are still available.
+        if (ti==stream_type && id==last_id)
+            return found>0?0:-1;
+
+        if (ti!=stream_type)
+            openStreams(ti);
+
+        boolean back = id<last_id;
+        boolean moved = false;
+        for (int r=0;r<in.length;r++)
+        {
+            boolean jump = back && (done[r] || head_id[r]>=id);
+            if (!jump && !done[r])
+            {
+                int b = (run_size.get(ti).get(r)-left[r]-1)/BLOCK;
+                jump = b+1<bid[r].length && bid[r][b+1]<id;
+            }
+            if (jump)
+            {
+                seek(r,id);
+                moved = true;
+            }
+        }
+        if (moved)
+        {
+            heap_size = 0;
+            for (int r=0;r<in.length;r++)
+                if (!done[r])
+                {
+                    heap[heap_size++] = r;
+                    siftUp(heap_size-1);
+                }
+        }
+        last_id = id;
+
+        while (heap_size>0 && head_id[heap[0]]<id)
+            pop();
+
+        found = 0;
+        while (heap_size>0 && head_id[heap[0]]==id)
+        {
+            if (found==found_relation.length)
+            {
+                found_relation = Arrays.copyOf(found_relation,2*found);
+                found_role = Arrays.copyOf(found_role,2*found);
+                found_nr = Arrays.copyOf(found_nr,2*found);
+            }
+
+            int r = heap[0];
+            found_relation[found] = head_relation[r];
+            found_role[found] = head_role[r];
+            found_nr[found] = head_nr[r];
+            found++;
+            pop();
+        }
+
+        return found>0?0:-1;
+    }
+
+    private void openStreams(int ti) throws IOException
+    {
+        closeStreams();
+
+        int n = runs.get(ti).size();
+        in = new OmaInputStream[n];
+        left = new int[n];
+        done = new boolean[n];
+        bid = block_id.get(ti).toArray(new long[n][]);
+        bpos = block_pos.get(ti).toArray(new long[n][]);
+        head_id = new long[n];
+        head_relation = new long[n];
+        head_role = new int[n];
+        head_nr = new int[n];
+        heap = new int[n];
+        heap_size = 0;
+
+        for (int i=0;i<n;i++)
+        {
+            in[i] = OmaInputStream.init(runs.get(ti).get(i));
+            left[i] = run_size.get(ti).get(i);
+            if (readHead(i))
+            {
+                heap[heap_size++] = i;
+                siftUp(heap_size-1);
+            }
+        }
+
+        stream_type = ti;
+        last_id = Long.MIN_VALUE;
+    }
+
+    // Moves run r to the last block starting with an id less than id,
+    // so that all its memberships of id will be read next. The heap
+    // has to be rebuilt afterwards.
+    private void seek(int r, long id) throws IOException
+    {
+        long[] k = bid[r];
+        int lo = 0;
+        int hi = k.length;
+        while (lo<hi)
+        {
+            int mid = (lo+hi)>>>1;
+            if (k[mid]<id) lo = mid+1;
+            else hi = mid;
+        }
+        int b = Math.max(0,lo-1);
+
+        in[r].setPosition(bpos[r][b]);
+        left[r] = run_size.get(stream_type).get(r)-b*BLOCK;
+        readHead(r);
+    }
+
+    private void closeStreams() throws IOException
+    {
+        if (in!=null)
+            for (OmaInputStream s:in)
+                s.close();
+        in = null;
+        bid = bpos = null;
+        heap_size = 0;
+        stream_type = -1;
+    }
+
+    private boolean readHead(int r) throws IOException
+    {
+        done[r] = left[r]==0;
+        if (done[r]) return false;
+
+        head_id[r] = in[r].readLong();
+        head_relation[r] = in[r].readLong();
+        head_role[r] = in[r].readInt();
+        head_nr[r] = in[r].readSmallInt();
+        left[r]--;
+        return true;
+    }
+
+    private void pop() throws IOException
+    {
+        if (!readHead(heap[0]))
+            heap[0] = heap[--heap_size];
+        siftDown(0);
+    }
+
+    // Runs are ordered like the memberships were added, so on equal
+    // ids the earlier run comes first.
+    private boolean less(int a, int b)
+    {
+        return head_id[a]<head_id[b] || (head_id[a]==head_id[b] && a<b);
+    }
+
+    private void siftUp(int i)
+    {
+        while (i>0)
+        {
+            int parent = (i-1)/2;
+            if (!less(heap[i],heap[parent])) return;
+            swap(i,parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i)
+    {
+        while (true)
+        {
+            int min = i;
+            int l = 2*i+1;
+            int r = l+1;
+            if (l<heap_size && less(heap[l],heap[min])) min = l;
+            if (r<heap_size && less(heap[r],heap[min])) min = r;
+            if (min==i) return;
+            swap(i,min);
+            i = min;
+        }
+    }
+
+    private void swap(int i, int j)
+    {
+        int h = heap[i];
+        heap[i] = heap[j];
+        heap[j] = h;
+    }
+}
@@ -0,0 +1,42 @@
+package de.kumakyoo.oma;
+
+import java.util.Arrays;
+
+public class NodeBatch extends ElementBatch
+{
+    int[] lon;
+    int[] lat;
+
+    public NodeBatch(int capacity)
+    {
+        this(capacity,null);
+    }
+
+    public NodeBatch(int capacity, String[] strings)
+    {
+        super(capacity,strings);
+        lon = new int[capacity];
+        lat = new int[capacity];
+    }
+
+    public void add(OSMNode n)
+    {
+        int i = add(n.id,n.version,n.timestamp,n.changeset,n.uid,n.user);
+        lon[i] = n.lon;
+        lat[i] = n.lat;
+        for (var tag:n.tags.entrySet())
+            addTag(tag.getKey(),tag.getValue());
+    }
+
+    public OSMNode get(int i)
+    {
+        return new OSMNode(id[i],version[i],timestamp[i],changeset[i],uid[i],user(i),lon[i],lat[i],tagMap(i));
+    }
+
+    protected void grow(int capacity)
+    {
+        super.grow(capacity);
+        lon = Arrays.copyOf(lon,capacity);
+        lat = Arrays.copyOf(lat,capacity);
+    }
+}
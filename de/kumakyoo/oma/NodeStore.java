@@ -0,0 +1,38 @@
+package de.kumakyoo.oma;
+
+import java.io.IOException;
+
+// Keeps the locations of nodes for replacing node references by
+// coordinates. A location is packed into a long: longitude in the
+// upper, latitude in the lower 32 bits.
+abstract public class NodeStore
+{
+    public static final long NOT_FOUND = Long.MIN_VALUE;
+
+    abstract public boolean isFull();
+    abstract public void add(long id, int lon, int lat) throws IOException;
+
+    // Returns the location of the node or NOT_FOUND.
+    abstract public long get(long id);
+
+    abstract public long size();
+    abstract public long capacity();
+
+    abstract public void clear() throws IOException;
+    abstract public void close() throws IOException;
+
+    public static long pack(int lon, int lat)
+    {
+        return (long)lon<<32|(lat&0xffffffffL);
+    }
+
+    public static int lon(long loc)
+    {
+        return (int)(loc>>32);
+    }
+
+    public static int lat(long loc)
+    {
+        return (int)loc;
+    }
+}
@@ -2,280 +2,360 @@ package de.kumakyoo.oma;
 
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Map;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.io.InputStream;
 import java.io.DataInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.EOFException;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Files;
 
+// Datasets are read in chunks of about CHUNK_SIZE bytes. Delta coding
+// and the string table make each chunk depend on the chunks before,
+// except if it starts with a reset (0xff). Thus the file falls into
+// segments starting at reset points, which can be decoded
+// concurrently, while the chunks of a segment are decoded one after
+// another by the decoder of the segment.
+//
+// A reset is only used to start a new chunk, if the current chunk
+// has at least MIN_SEGMENT_SIZE bytes; otherwise very frequent resets
+// would lead to tiny chunks.
 public class O5MReader extends PackedIntegerReader
 {
-    private static final String[] type = {"node","way","relation"};
+    private static final byte[] TYPES = {'n','w','r'};
 
-    private DataInputStream din;
-    private DataInputStream in;
+    private static final int CHUNK_SIZE = 1<<20;
+    private static final int MIN_SEGMENT_SIZE = 1<<16;
 
-    private long id = 0;
-    private long timestamp = 0;
-    private long changeset = 0;
-    private long lon = 0;
-    private long lat = 0;
-    private int version = 0;
-    private int uid = 0;
-    private String user = "";
-    private long[] refid = new long[3];
+    // Keys are shared between all chunks decoded by the same thread.
+    private static final ThreadLocal<StringCache> KEYS = ThreadLocal.withInitial(StringCache::new);
 
-    private String[][] table = new String[15000][2];
-    private int tab_index = 0;
+    private DataInputStream din;
 
-    private int lastsize;
+    private int pending = -1;
+    private Decoder decoder = null;
+    private CompletableFuture<List<Element>> last = null;
 
     public O5MReader(Path filename) throws IOException
     {
-        din = new DataInputStream(new BufferedInputStream(Files.newInputStream(filename)));
+        this(new BufferedInputStream(Files.newInputStream(filename)));
     }
 
-    public void close() throws IOException
+    public O5MReader(InputStream in)
     {
-        din.close();
+        din = new DataInputStream(in);
+
+        if (Oma.threads>1)
+            startPipeline("O5M");
     }
 
-    public int nextElement() throws IOException
+    public void close() throws IOException
     {
-        int eid = din.readUnsignedByte();
-        if (eid<0xf0)
-        {
-            in = din;
-            byte[] data = new byte[(int)u(in)];
-            in.readFully(data);
-            in = new DataInputStream(new ByteArrayInputStream(data));
-        }
-
-        return eid;
+        stopPipeline();
+        din.close();
     }
 
-    public Element next() throws IOException
+    protected Future<List<Element>> readBlock(Executor exec) throws IOException
     {
-        int eid = 0;
-        while (true)
+        byte[] chunk = new byte[CHUNK_SIZE+1024];
+        int len = 0;
+        boolean reset = false;
+
+        while (len<CHUNK_SIZE)
         {
-            try {
-                eid = nextElement();
-            } catch (EOFException ex) { return null; }
+            int eid = pending;
+            pending = -1;
+            if (eid==-1)
+            {
+                eid = din.read();
+                if (eid==-1) break;
+            }
 
-            switch (eid)
+            if (eid==0xff && len>=MIN_SEGMENT_SIZE)
             {
-            case 0x10:
-                return node();
-            case 0x11:
-                return way();
-            case 0x12:
-                return relation();
-            case 0xdb:
-                return new Bounds((int)s(in),(int)s(in),(int)s(in),(int)s(in));
-            case 0xff:
-                reset();
-                break;
-            default:
-                // ignore all other elements
+                pending = eid;
                 break;
             }
-        }
-    }
-
-    private void reset()
-    {
-        id = 0;
-        timestamp = 0;
-        changeset = 0;
-        lon = 0;
-        lat = 0;
-        for (int i=0;i<3;i++)
-            refid[i] = 0;
-    }
-
-    private OSMNode node() throws IOException
-    {
-        basicInfo();
+            if (len==0)
+                reset = eid==0xff;
 
-        lon += s(in);
-        lat += s(in);
+            chunk[len++] = (byte)eid;
+            if (eid>=0xf0) continue;
 
-        return new OSMNode(id,version,timestamp,changeset,uid,user,(int)lon,(int)lat,tags());
-    }
+            // copy length and body of the dataset
+            long size = 0;
+            int shift = 0;
+            while (true)
+            {
+                int next = din.readUnsignedByte();
+                if (len==chunk.length)
+                    chunk = Arrays.copyOf(chunk,2*chunk.length);
+                chunk[len++] = (byte)next;
+
+                size |= (long)(next&0x7f)<<shift;
+                if (next<0x80) break;
+                shift += 7;
+            }
 
-    private OSMWay way() throws IOException
-    {
-        basicInfo();
+            if (len+size>chunk.length)
+                chunk = Arrays.copyOf(chunk,(int)Math.max(2L*chunk.length,len+size));
+            din.readFully(chunk,len,(int)size);
+            len += (int)size;
+        }
 
-        DataInputStream tmp = in;
-        in = getChunk((int)u(in));
+        if (len==0) return null;
 
-        List<Long> nds = new ArrayList<>();
-        while (true)
+        if (reset || decoder==null)
         {
-            try {
-                refid[0] += s(in);
-                nds.add(refid[0]);
-            } catch (EOFException ex) { break; }
+            decoder = new Decoder();
+            last = null;
         }
 
-        in = tmp;
-        return new OSMWay(id,version,timestamp,changeset,uid,user,nds,tags());
+        Decoder d = decoder;
+        PackedIntegerArray data = new PackedIntegerArray(chunk,0,len);
+        last = submit(() -> d.decode(data),last,exec);
+        return last;
     }
 
-    private OSMRelation relation() throws IOException
+    //////////////////////////////////////////////////////////////////
+
+    // Holds the state of decoding a segment.
+    class Decoder
     {
-        basicInfo();
+        private PackedIntegerArray in;
 
-        DataInputStream tmp = in;
-        in = getChunk((int)u(in));
+        private long id = 0;
+        private long timestamp = 0;
+        private long changeset = 0;
+        private long lon = 0;
+        private long lat = 0;
+        private int version = 0;
+        private int uid = 0;
+        private String user = "";
+        private long[] refid = new long[3];
 
-        List<OSMMember> members = new ArrayList<>();
-        while (true)
-        {
-            try {
-                long delta = s(in);
-                String[] pair = getPair(true,true);
-                int t = pair[0].charAt(0)-'0';
-                refid[t] += delta;
+        private String[][] table = new String[15000][2];
+        private int tab_index = 0;
 
-                members.add(new OSMMember(type[t],refid[t],pair[1]));
-            } catch (EOFException ex) { break; }
-        }
+        private int lastsize;
 
-        in = tmp;
-        return new OSMRelation(id,version,timestamp,changeset,uid,user,members,tags());
-    }
+        private StringCache keys;
 
-    //////////////////////////////////////////////////////////////////
+        // Consecutive elements of the same type are collected in a
+        // batch.
+        public List<Element> decode(PackedIntegerArray data) throws IOException
+        {
+            List<Element> erg = new ArrayList<>();
+            ElementBatch b = null;
+            keys = KEYS.get();
 
-    private void basicInfo() throws IOException
-    {
-        id += s(in);
-        version = (int)u(in);
-        if (version == 0)
+            while (data.hasMore())
+            {
+                int eid = data.readUnsignedByte();
+                if (eid<0xf0)
+                    in = data.field();
+
+                switch (eid)
+                {
+                    case 0x10 ->
+                    {
+                        if (!(b instanceof NodeBatch) || b.size>=BATCH_SIZE)
+                            erg.add(b = new NodeBatch(BATCH_SIZE));
+                        node((NodeBatch)b);
+                    }
+                    case 0x11 ->
+                    {
+                        if (!(b instanceof WayBatch) || b.size>=BATCH_SIZE)
+                            erg.add(b = new WayBatch(BATCH_SIZE));
+                        way((WayBatch)b);
+                    }
+                    case 0x12 ->
+                    {
+                        if (!(b instanceof RelationBatch) || b.size>=BATCH_SIZE)
+                            erg.add(b = new RelationBatch(BATCH_SIZE));
+                        relation((RelationBatch)b);
+                    }
+                    case 0xdb ->
+                    {
+                        erg.add(new Bounds((int)in.s(),(int)in.s(),(int)in.s(),(int)in.s()));
+                        b = null;
+                    }
+                    case 0xff -> reset();
+                    default -> {} // ignore all other elements
+                }
+            }
+
+            return erg;
+        }
+
+        private void reset()
         {
+            id = 0;
             timestamp = 0;
             changeset = 0;
-            uid = 0;
-            user = "";
-            return;
+            lon = 0;
+            lat = 0;
+            for (int i=0;i<3;i++)
+                refid[i] = 0;
         }
 
-        timestamp += s(in);
-        if (timestamp == 0)
+        private void node(NodeBatch nodes) throws IOException
         {
-            changeset = 0;
-            uid = 0;
-            user = "";
-            return;
+            basicInfo();
+
+            lon += in.s();
+            lat += in.s();
+
+            int i = nodes.add(id,version,timestamp,changeset,uid,user);
+            nodes.lon[i] = (int)lon;
+            nodes.lat[i] = (int)lat;
+            tags(nodes);
         }
 
-        changeset += s(in);
-        String[] s = getPair(true,false);
-        uid = Integer.parseInt(s[0]);
-        user = s[1];
-    }
+        private void way(WayBatch ways) throws IOException
+        {
+            basicInfo();
+            ways.add(id,version,timestamp,changeset,uid,user);
 
-    public DataInputStream getChunk(int size) throws IOException
-    {
-        byte[] data = new byte[size];
-        in.readFully(data);
-        return new DataInputStream(new ByteArrayInputStream(data));
-    }
+            PackedIntegerArray tmp = in;
+            in = in.field();
 
-    public Map<String, String> tags() throws IOException
-    {
-        Map<String, String> tags = new HashMap<>();
+            while (in.hasMore())
+            {
+                refid[0] += in.s();
+                ways.addRef(refid[0]);
+            }
 
-        while (true)
-        {
-            try {
-                String[] tmp = getPair(false,false);
-                tags.put(tmp[0],tmp[1]);
-            } catch (EOFException e) { break; }
+            in = tmp;
+            tags(ways);
         }
 
-        return tags;
-    }
+        private void relation(RelationBatch relations) throws IOException
+        {
+            basicInfo();
+            relations.add(id,version,timestamp,changeset,uid,user);
 
-    //////////////////////////////////////////////////////////////////
+            PackedIntegerArray tmp = in;
+            in = in.field();
 
-    private String[] getPair(boolean integer,boolean nozero) throws IOException
-    {
-        // faster than call to u()...
-        int index = in.readUnsignedByte();
-        if (index!=0)
-        {
-            if (index>=0x80)
-                index = index - 0x80 + (in.readUnsignedByte()<<7);
-            return table[(tab_index+15000-index)%15000];
+            while (in.hasMore())
+            {
+                long delta = in.s();
+                String[] pair = getPair(true,true);
+                int t = pair[0].charAt(0)-'0';
+                refid[t] += delta;
+
+                relations.addMember(TYPES[t],refid[t],pair[1]);
+            }
+
+            in = tmp;
+            tags(relations);
         }
 
-        String[] ret = new String[2];
-        int len0 = 1;
-        if (integer)
+        //////////////////////////////////////////////////////////////////
+
+        private void basicInfo() throws IOException
         {
-            if (nozero)
-                ret[0] = Character.toString((char)in.readUnsignedByte());
-            else
+            id += in.s();
+            version = (int)in.u();
+            if (version == 0)
+            {
+                timestamp = 0;
+                changeset = 0;
+                uid = 0;
+                user = "";
+                return;
+            }
+
+            timestamp += in.s();
+            if (timestamp == 0)
             {
-                long value = u(in);
-                ret[0] = Long.toString(value);
-                len0 = getLength(value);
-                if (value!=0)
-                    in.readUnsignedByte(); // zero separating uid and name
+                changeset = 0;
+                uid = 0;
+                user = "";
+                return;
             }
+
+            changeset += in.s();
+            String[] s = getPair(true,false);
+            uid = Integer.parseInt(s[0]);
+            user = s[1];
         }
-        else
+
+        public void tags(ElementBatch b) throws IOException
         {
-            ret[0] = str();
-            len0 = lastsize;
+            while (in.hasMore())
+            {
+                String[] tmp = getPair(false,false);
+                b.addTag(tmp[0],tmp[1]);
+            }
         }
-        ret[1] = str();
 
-        if (len0+lastsize<=250)
+        //////////////////////////////////////////////////////////////////
+
+        private String[] getPair(boolean integer,boolean nozero) throws IOException
         {
-            table[tab_index] = ret;
-            tab_index = (tab_index+1)%15000;
+            // faster than call to u()...
+            int index = in.readUnsignedByte();
+            if (index!=0)
+            {
+                if (index>=0x80)
+                    index = index - 0x80 + (in.readUnsignedByte()<<7);
+                return table[(tab_index+15000-index)%15000];
+            }
+
+            String[] ret = new String[2];
+            int len0 = 1;
+            if (integer)
+            {
+                if (nozero)
+                    ret[0] = Character.toString((char)in.readUnsignedByte());
+                else
+                {
+                    long value = in.u();
+                    ret[0] = Long.toString(value);
+                    len0 = getLength(value);
+                    if (value!=0)
+                        in.readUnsignedByte(); // zero separating uid and name
+                }
+            }
+            else
+            {
+                ret[0] = str(keys);
+                len0 = lastsize;
+            }
+            ret[1] = str(null);
+
+            if (len0+lastsize<=250)
+            {
+                table[tab_index] = ret;
+                tab_index = (tab_index+1)%15000;
+            }
+            return ret;
         }
-        return ret;
-    }
 
-    private String str() throws IOException
-    {
-        List<Byte> b = new ArrayList<>();
-        while (true)
+        private String str(StringCache cache) throws IOException
         {
-            byte next = in.readByte();
-            if (next==0) break;
-            b.add(next);
+            int start = in.available();
+            String erg = in.cstring(cache);
+            lastsize = start-in.available()-1;
+            return erg;
         }
 
-        lastsize = b.size();
-        byte[] b2 = new byte[b.size()];
-        for (int i=0;i<b.size();i++)
-            b2[i] = b.get(i);
-
-        return new String(b2,StandardCharsets.UTF_8);
-    }
-
-    private int getLength(long val)
-    {
-        if (val<=127L) return 1;
-        if (val<=16383L) return 2;
-        if (val<=2097151L) return 3;
-        if (val<=268435455L) return 4;
-        if (val<=34359738367L) return 5;
-        if (val<=4398046511103L) return 6;
-        if (val<=562949953421311L) return 7;
-        if (val<=72057594037927935L) return 8;
-        return 9;
+        private int getLength(long val)
+        {
+            if (val<=127L) return 1;
+            if (val<=16383L) return 2;
+            if (val<=2097151L) return 3;
+            if (val<=268435455L) return 4;
+            if (val<=34359738367L) return 5;
+            if (val<=4398046511103L) return 6;
+            if (val<=562949953421311L) return 7;
+            if (val<=72057594037927935L) return 8;
+            return 9;
+        }
     }
 }
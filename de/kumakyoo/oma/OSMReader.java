@@ -1,20 +1,122 @@
 package de.kumakyoo.oma;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 
+// Readers can either hand out single elements (next()) or batches of
+// elements of the same type (nextBatch()). Each reader has to
+// implement at least one of these methods, the other one is derived
+// from it.
 abstract public class OSMReader
 {
+    static final int BATCH_SIZE = 8000;
+
+    private ElementBatch batch = null;
+    private int batch_pos = 0;
+
+    private Element pending = null;
+    private boolean eof = false;
+    private NodeBatch nodes;
+    private WayBatch ways;
+    private RelationBatch relations;
+
     public static OSMReader getReader(Path filename) throws IOException
     {
-        if (Tools.isO5M(filename))
+        if (Oma.mmap)
+        {
+            MappedInputStream in = new MappedInputStream(filename);
+            ByteBuffer head = in.peek(Tools.SIGNATUR_LENGTH);
+            if (Tools.isO5M(head))
+                return new O5MReader(in);
+            else if (Tools.isPBF(head))
+                return new PBFReader(in);
+            in.close();
+        }
+        else if (Tools.isO5M(filename))
             return new O5MReader(filename);
         else if (Tools.isPBF(filename))
             return new PBFReader(filename);
-        else
-            return new OSMXMLReader(filename);
+
+        return new OSMXMLReader(filename);
     }
 
     abstract public void close() throws IOException;
-    abstract public Element next() throws IOException;
+
+    // Returns the next element or null at the end of the file.
+    public Element next() throws IOException
+    {
+        while (batch==null || batch_pos>=batch.size)
+        {
+            Element e = nextBatch();
+            if (!(e instanceof ElementBatch))
+                return e;
+
+            batch = (ElementBatch)e;
+            batch_pos = 0;
+        }
+
+        return batch.get(batch_pos++);
+    }
+
+    // Returns the next batch of elements (NodeBatch, WayBatch or
+    // RelationBatch), Bounds or null at the end of the file. A batch
+    // may be reused by the reader and is only valid until the next
+    // call.
+    public Element nextBatch() throws IOException
+    {
+        Element e = pending;
+        pending = null;
+        if (e==null && !eof) e = next();
+        if (e==null)
+        {
+            eof = true;
+            return null;
+        }
+
+        ElementBatch b = getBatch(e);
+        if (b==null) return e;
+
+        b.clear();
+        while (true)
+        {
+            if (e instanceof OSMNode)
+                nodes.add((OSMNode)e);
+            else if (e instanceof OSMWay)
+                ways.add((OSMWay)e);
+            else
+                relations.add((OSMRelation)e);
+
+            if (b.size>=BATCH_SIZE) return b;
+
+            e = next();
+            if (e==null)
+                eof = true;
+            if (e==null || getBatch(e)!=b)
+            {
+                pending = e;
+                return b;
+            }
+        }
+    }
+
+    private ElementBatch getBatch(Element e)
+    {
+        if (e instanceof OSMNode)
+        {
+            if (nodes==null) nodes = new NodeBatch(BATCH_SIZE);
+            return nodes;
+        }
+        if (e instanceof OSMWay)
+        {
+            if (ways==null) ways = new WayBatch(BATCH_SIZE);
+            return ways;
+        }
+        if (e instanceof OSMRelation)
+        {
+            if (relations==null) relations = new RelationBatch(BATCH_SIZE);
+            return relations;
+        }
+        return null;
+    }
 }
@@ -2,210 +2,561 @@ package de.kumakyoo.oma;
 
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Map;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.io.InputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Files;
-import javax.xml.stream.XMLStreamReader;
-import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.XMLStreamConstants;
-import javax.xml.stream.XMLInputFactory;
-import java.time.format.DateTimeFormatter;
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
-
-public class OSMXMLReader extends OSMReader
+
+// A tokenizer for OSM XML files working directly on the UTF-8 encoded
+// bytes. Only the small subset of XML used in OSM files is supported:
+// Elements with attributes, comments, processing instructions and
+// declarations, which are skipped, and the predefined and numeric
+// entities. Text content is ignored.
+//
+// The file is read in chunks of about CHUNK_SIZE bytes, which are cut
+// just before the start tag of a node, way or relation. Elements do
+// not depend on each other, so all chunks can be decoded
+// concurrently.
+public class OSMXMLReader extends BlockReader
 {
-    XMLStreamReader r;
-
-    int lon = 0;
-    int lat = 0;
-    long id = 0;
-    int version = 0;
-    long timestamp = 0;
-    long changeset = 0;
-    int uid = 0;
-    String user = "";
-    Map<String, String> tags = null;
-    List<Long> nds = null;
-    List<OSMMember> members = null;
-
-    String key = null;
-    String value = null;
-    String type = null;
-    long ref = Long.MIN_VALUE;
-    String role = null;
+    private static final int CHUNK_SIZE = 1<<20;
+
+    private static final byte[] NODE = bytes("node");
+    private static final byte[] WAY = bytes("way");
+    private static final byte[] RELATION = bytes("relation");
+    private static final byte[] TAG = bytes("tag");
+    private static final byte[] ND = bytes("nd");
+    private static final byte[] MEMBER = bytes("member");
+    private static final byte[] BOUNDS = bytes("bounds");
+    private static final byte[][] TOP_LEVEL = {NODE,WAY,RELATION};
+
+    private static final byte[] ID = bytes("id");
+    private static final byte[] VERSION = bytes("version");
+    private static final byte[] TIMESTAMP = bytes("timestamp");
+    private static final byte[] CHANGESET = bytes("changeset");
+    private static final byte[] UID = bytes("uid");
+    private static final byte[] USER = bytes("user");
+    private static final byte[] LAT = bytes("lat");
+    private static final byte[] LON = bytes("lon");
+    private static final byte[] K = bytes("k");
+    private static final byte[] V = bytes("v");
+    private static final byte[] REF = bytes("ref");
+    private static final byte[] TYPE = bytes("type");
+    private static final byte[] ROLE = bytes("role");
+    private static final byte[] MINLAT = bytes("minlat");
+    private static final byte[] MINLON = bytes("minlon");
+    private static final byte[] MAXLAT = bytes("maxlat");
+    private static final byte[] MAXLON = bytes("maxlon");
+
+    private static final byte[] COMMENT_START = bytes("!--");
+    private static final byte[] COMMENT_END = bytes("-->");
+    private static final byte[] CDATA_START = bytes("![CDATA[");
+    private static final byte[] CDATA_END = bytes("]]>");
+    private static final byte[] PI_END = bytes("?>");
+    private static final byte[] TAG_END = bytes(">");
+
+    // Keys, roles and user names are shared between all chunks
+    // decoded by the same thread.
+    private static final ThreadLocal<StringCache> STRINGS = ThreadLocal.withInitial(StringCache::new);
+
+    private InputStream in;
+    private byte[] rest = new byte[0];
 
     public OSMXMLReader(Path filename) throws IOException
     {
-        try {
-            r = XMLInputFactory.newInstance().createXMLStreamReader(Files.newInputStream(filename));
-        } catch (XMLStreamException e) { throw new IOException("XMLStreamException"); }
+        in = Files.newInputStream(filename);
+
+        if (Oma.threads>1)
+            startPipeline("XML");
     }
 
     public void close() throws IOException
     {
-        try {
-            r.close();
-        } catch (XMLStreamException e) { throw new IOException("XMLStreamException"); }
+        stopPipeline();
+        in.close();
     }
 
-    public Element next() throws IOException
+    protected Future<List<Element>> readBlock(Executor exec) throws IOException
     {
+        byte[] chunk = Arrays.copyOf(rest,Math.max(CHUNK_SIZE,2*rest.length));
+        int len = rest.length;
+
         while (true)
-        try {
-            if (!r.hasNext()) return null;
+        {
+            len += in.readNBytes(chunk,len,chunk.length-len);
+            if (len<chunk.length)
+            {
+                rest = new byte[0];
+                break;
+            }
+
+            int split = findSplit(chunk,len);
+            if (split>0)
+            {
+                rest = Arrays.copyOfRange(chunk,split,len);
+                len = split;
+                break;
+            }
+
+            chunk = Arrays.copyOf(chunk,2*chunk.length);
+        }
+
+        if (len==0) return null;
+
+        Decoder d = new Decoder(chunk,len);
+        return submit(d::decode,null,exec);
+    }
+
+    // Searches backwards for the start tag of a node, way or relation.
+    private int findSplit(byte[] b, int len)
+    {
+        for (int i=len-10;i>0;i--)
+            if (b[i]=='<')
+                for (byte[] name:TOP_LEVEL)
+                    if (Arrays.equals(b,i+1,i+1+name.length,name,0,name.length) && isNameEnd(b[i+1+name.length]))
+                        return i;
+        return -1;
+    }
+
+    private static boolean isNameEnd(byte c)
+    {
+        return c==' ' || c=='\t' || c=='\n' || c=='\r' || c=='/' || c=='>';
+    }
+
+    private static byte[] bytes(String s)
+    {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    //////////////////////////////////////////////////////////////////
+
+    class Decoder
+    {
+        private byte[] b;
+        private int pos;
+        private int end;
+
+        private List<Element> erg = new ArrayList<>();
+        private ElementBatch batch = null;
+        private ElementBatch current = null;
+        private StringCache strings;
+
+        // attributes of the current start tag
+        private int attr_count;
+        private int[] attr = new int[4*16];
+
+        public Decoder(byte[] b, int len)
+        {
+            this.b = b;
+            this.pos = 0;
+            this.end = len;
+        }
 
-            int code = r.next();
+        public List<Element> decode() throws IOException
+        {
+            strings = STRINGS.get();
 
-            if (code==XMLStreamConstants.START_ELEMENT)
+            while (true)
             {
-                String name = r.getName().toString();
+                while (pos<end && b[pos]!='<') pos++;
+                if (pos>=end) break;
+                pos++;
 
-                if ("node".equals(name))
+                if (pos<end && b[pos]=='?')
+                    skip(PI_END);
+                else if (pos<end && b[pos]=='!')
                 {
-                    int c = r.getAttributeCount();
-                    for (int i=0;i<c;i++)
-                    {
-                        String aname = r.getAttributeLocalName(i);
-                        String value = r.getAttributeValue(i);
-
-                        if ("lat".equals(aname))
-                            lat = (int)(0.5+10000000*Double.parseDouble(value));
-                        else if ("lon".equals(aname))
-                            lon = (int)(0.5+10000000*Double.parseDouble(value));
-                        else
-                            checkBasicData(aname,value);
-                    }
-
-                    tags = new HashMap<>();
+                    if (startsWith(COMMENT_START))
+                        skip(COMMENT_END);
+                    else if (startsWith(CDATA_START))
+                        skip(CDATA_END);
+                    else
+                        skip(TAG_END);
                 }
-                else if ("tag".equals(name))
-                {
-                    int c = r.getAttributeCount();
-                    for (int i=0;i<c;i++)
-                    {
-                        String aname = r.getAttributeLocalName(i);
+                else if (pos<end && b[pos]=='/')
+                    endTag();
+                else
+                    startTag();
+            }
 
-                        if ("k".equals(aname))
-                            key = r.getAttributeValue(i);
-                        else if ("v".equals(aname))
-                            value = r.getAttributeValue(i);
-                    }
+            return erg;
+        }
 
-                    tags.put(key,value);
+        private void startTag() throws IOException
+        {
+            int name = pos;
+            while (pos<end && !isNameEnd(b[pos])) pos++;
+            int name_end = pos;
+
+            attr_count = 0;
+            boolean empty = false;
+            while (true)
+            {
+                while (pos<end && isSpace(b[pos])) pos++;
+                if (pos>=end) throw new IOException("unexpected end of XML file");
+                if (b[pos]=='>')
+                {
+                    pos++;
+                    break;
                 }
-                else if ("way".equals(name))
+                if (b[pos]=='/')
                 {
-                    int c = r.getAttributeCount();
-                    for (int i=0;i<c;i++)
-                    {
-                        String aname = r.getAttributeLocalName(i);
-                        String value = r.getAttributeValue(i);
+                    empty = true;
+                    pos++;
+                    continue;
+                }
+                readAttribute();
+            }
 
-                        checkBasicData(aname,value);
-                    }
+            element(name,name_end);
+            if (empty && isTopLevel(name,name_end))
+                current = null;
+        }
 
-                    tags = new HashMap<>();
-                    nds = new ArrayList<>();
-                }
-                else if ("nd".equals(name))
-                {
-                    int c = r.getAttributeCount();
-                    for (int i=0;i<c;i++)
-                    {
-                        String aname = r.getAttributeLocalName(i);
+        private void endTag()
+        {
+            int name = ++pos;
+            while (pos<end && !isNameEnd(b[pos])) pos++;
+            if (isTopLevel(name,pos))
+                current = null;
+            skip(TAG_END);
+        }
 
-                        if ("ref".equals(aname))
-                            nds.add(Long.valueOf(r.getAttributeValue(i)));
-                    }
-                }
-                else if ("relation".equals(name))
-                {
-                    int c = r.getAttributeCount();
-                    for (int i=0;i<c;i++)
-                    {
-                        String aname = r.getAttributeLocalName(i);
-                        String value = r.getAttributeValue(i);
+        private boolean isTopLevel(int name, int name_end)
+        {
+            return is(name,name_end,NODE) || is(name,name_end,WAY) || is(name,name_end,RELATION);
+        }
 
-                        checkBasicData(aname,value);
-                    }
+        private void readAttribute() throws IOException
+        {
+            if (4*attr_count==attr.length)
+                attr = Arrays.copyOf(attr,2*attr.length);
 
-                    tags = new HashMap<>();
-                    members = new ArrayList<>();
-                }
-                else if ("member".equals(name))
+            int a = 4*attr_count;
+            attr[a] = pos;
+            while (pos<end && b[pos]!='=' && !isSpace(b[pos])) pos++;
+            attr[a+1] = pos;
+            while (pos<end && b[pos]!='"' && b[pos]!='\'') pos++;
+            if (pos>=end) throw new IOException("unexpected end of XML file");
+
+            byte quote = b[pos++];
+            attr[a+2] = pos;
+            while (pos<end && b[pos]!=quote) pos++;
+            if (pos>=end) throw new IOException("unexpected end of XML file");
+            attr[a+3] = pos++;
+
+            attr_count++;
+        }
+
+        //////////////////////////////////////////////////////////////////
+
+        private void element(int name, int name_end) throws IOException
+        {
+            if (is(name,name_end,NODE))
+            {
+                if (!(batch instanceof NodeBatch) || batch.size>=BATCH_SIZE)
+                    erg.add(batch = new NodeBatch(BATCH_SIZE));
+                NodeBatch nodes = (NodeBatch)batch;
+
+                int i = basicData(nodes);
+                for (int j=0;j<attr_count;j++)
+                    if (isAttr(j,LAT))
+                        nodes.lat[i] = fixed(j);
+                    else if (isAttr(j,LON))
+                        nodes.lon[i] = fixed(j);
+                current = nodes;
+            }
+            else if (is(name,name_end,WAY))
+            {
+                if (!(batch instanceof WayBatch) || batch.size>=BATCH_SIZE)
+                    erg.add(batch = new WayBatch(BATCH_SIZE));
+                basicData(batch);
+                current = batch;
+            }
+            else if (is(name,name_end,RELATION))
+            {
+                if (!(batch instanceof RelationBatch) || batch.size>=BATCH_SIZE)
+                    erg.add(batch = new RelationBatch(BATCH_SIZE));
+                basicData(batch);
+                current = batch;
+            }
+            else if (is(name,name_end,TAG))
+            {
+                if (current==null) return;
+
+                String key = null;
+                String value = null;
+                for (int j=0;j<attr_count;j++)
+                    if (isAttr(j,K))
+                        key = string(j,strings);
+                    else if (isAttr(j,V))
+                        value = string(j,null);
+                if (key!=null && value!=null)
+                    current.addTag(key,value);
+            }
+            else if (is(name,name_end,ND))
+            {
+                if (!(current instanceof WayBatch)) return;
+
+                for (int j=0;j<attr_count;j++)
+                    if (isAttr(j,REF))
+                        ((WayBatch)current).addRef(number(j));
+            }
+            else if (is(name,name_end,MEMBER))
+            {
+                if (!(current instanceof RelationBatch)) return;
+
+                byte type = 0;
+                long ref = Long.MIN_VALUE;
+                String role = "";
+                for (int j=0;j<attr_count;j++)
+                    if (isAttr(j,TYPE))
+                        type = attr[4*j+3]>attr[4*j+2]?b[attr[4*j+2]]:0;
+                    else if (isAttr(j,REF))
+                        ref = number(j);
+                    else if (isAttr(j,ROLE))
+                        role = string(j,strings);
+                if (type!=0 && ref!=Long.MIN_VALUE)
+                    ((RelationBatch)current).addMember(type,ref,role);
+            }
+            else if (is(name,name_end,BOUNDS))
+            {
+                int minlat = Integer.MIN_VALUE;
+                int minlon = Integer.MIN_VALUE;
+                int maxlat = Integer.MIN_VALUE;
+                int maxlon = Integer.MIN_VALUE;
+
+                for (int j=0;j<attr_count;j++)
+                    if (isAttr(j,MINLAT))
+                        minlat = fixed(j);
+                    else if (isAttr(j,MINLON))
+                        minlon = fixed(j);
+                    else if (isAttr(j,MAXLAT))
+                        maxlat = fixed(j);
+                    else if (isAttr(j,MAXLON))
+                        maxlon = fixed(j);
+
+                erg.add(new Bounds(minlon,minlat,maxlon,maxlat));
+                batch = null;
+            }
+        }
+
+        private int basicData(ElementBatch batch) throws IOException
+        {
+            long id = 0;
+            int version = 0;
+            long timestamp = 0;
+            long changeset = 0;
+            int uid = 0;
+            String user = "";
+
+            for (int j=0;j<attr_count;j++)
+                if (isAttr(j,ID))
+                    id = number(j);
+                else if (isAttr(j,VERSION))
+                    version = (int)number(j);
+                else if (isAttr(j,TIMESTAMP))
+                    timestamp = timestamp(j);
+                else if (isAttr(j,CHANGESET))
+                    changeset = number(j);
+                else if (isAttr(j,UID))
+                    uid = (int)number(j);
+                else if (isAttr(j,USER))
+                    user = string(j,strings);
+
+            return batch.add(id,version,timestamp,changeset,uid,user);
+        }
+
+        //////////////////////////////////////////////////////////////////
+
+        private boolean is(int start, int end, byte[] name)
+        {
+            return Arrays.equals(b,start,end,name,0,name.length);
+        }
+
+        private boolean isAttr(int j, byte[] name)
+        {
+            return is(attr[4*j],attr[4*j+1],name);
+        }
+
+        private long number(int j) throws IOException
+        {
+            int p = attr[4*j+2];
+            int e = attr[4*j+3];
+
+            boolean neg = p<e && b[p]=='-';
+            if (neg) p++;
+            if (p>=e) throw new IOException("invalid number in XML file");
+
+            long val = 0;
+            for (;p<e;p++)
+            {
+                int d = b[p]-'0';
+                if (d<0 || d>9) throw new IOException("invalid number in XML file");
+                val = 10*val+d;
+            }
+            return neg?-val:val;
+        }
+
+        // Parses a decimal number into an integer in units of 1e-7,
+        // rounding half away from zero.
+        private int fixed(int j) throws IOException
+        {
+            int p = attr[4*j+2];
+            int e = attr[4*j+3];
+
+            boolean neg = p<e && b[p]=='-';
+            if (neg || p<e && b[p]=='+') p++;
+
+            long val = 0;
+            int digits = -1;
+            for (;p<e;p++)
+            {
+                int c = b[p];
+                if (c=='.' && digits<0)
+                    digits = 0;
+                else if (c>='0' && c<='9')
                 {
-                    int c = r.getAttributeCount();
-                    for (int i=0;i<c;i++)
+                    if (digits<7)
                     {
-                        String aname = r.getAttributeLocalName(i);
-
-                        if ("type".equals(aname))
-                            type = r.getAttributeValue(i);
-                        else if ("ref".equals(aname))
-                            ref = Long.parseLong(r.getAttributeValue(i));
-                        else if ("role".equals(aname))
-                            role = r.getAttributeValue(i);
+                        val = 10*val+c-'0';
+                        if (digits>=0) digits++;
                     }
+                    else if (digits==7)
+                    {
+                        if (c>='5') val++;
+                        digits++;
+                    }
+                }
+                else
+                    return (int)Math.round(10000000*Double.parseDouble(new String(b,attr[4*j+2],e-attr[4*j+2],StandardCharsets.UTF_8)));
+            }
+
+            for (int i=Math.max(digits,0);i<7;i++)
+                val *= 10;
+            return (int)(neg?-val:val);
+        }
+
+        // Parses a timestamp of the form 2025-01-01T12:34:56Z into
+        // seconds since 1970.
+        private long timestamp(int j) throws IOException
+        {
+            int p = attr[4*j+2];
+            if (attr[4*j+3]-p!=20 || b[p+4]!='-' || b[p+7]!='-' || b[p+10]!='T'
+                || b[p+13]!=':' || b[p+16]!=':' || b[p+19]!='Z')
+                throw new IOException("invalid timestamp in XML file");
+
+            int year = digits(p,4);
+            int month = digits(p+5,2);
+            int day = digits(p+8,2);
+
+            // days since 1970-01-01 of the given date (proleptic gregorian calendar)
+            int y = month<=2?year-1:year;
+            int era = Math.floorDiv(y,400);
+            int yoe = y-era*400;
+            int doy = (153*(month>2?month-3:month+9)+2)/5+day-1;
+            int doe = yoe*365+yoe/4-yoe/100+doy;
+            long days = era*146097L+doe-719468;
+
+            return days*86400+digits(p+11,2)*3600+digits(p+14,2)*60+digits(p+17,2);
+        }
+
+        private int digits(int p, int n) throws IOException
+        {
+            int val = 0;
+            for (int i=p;i<p+n;i++)
+            {
+                int d = b[i]-'0';
+                if (d<0 || d>9) throw new IOException("invalid timestamp in XML file");
+                val = 10*val+d;
+            }
+            return val;
+        }
+
+        private String string(int j, StringCache cache)
+        {
+            int p = attr[4*j+2];
+            int e = attr[4*j+3];
 
-                    members.add(new OSMMember(type,ref,role));
+            for (int i=p;i<e;i++)
+                if (b[i]=='&' || b[i]=='\t' || b[i]=='\n' || b[i]=='\r')
+                    return unescape(p,e);
+
+            if (cache==null)
+                return new String(b,p,e-p,StandardCharsets.UTF_8);
+            return cache.get(b,p,e-p);
+        }
+
+        // Replaces entities and normalizes white space, as required
+        // for attribute values.
+        private String unescape(int p, int e)
+        {
+            StringBuilder sb = new StringBuilder();
+            int start = p;
+            for (int i=p;i<e;i++)
+            {
+                int c = b[i];
+                if (c=='\t' || c=='\n' || c=='\r')
+                {
+                    sb.append(new String(b,start,i-start,StandardCharsets.UTF_8)).append(' ');
+                    start = i+1;
                 }
-                else if ("bounds".equals(name))
+                else if (c=='&')
                 {
-                    int minlat = Integer.MIN_VALUE;
-                    int minlon = Integer.MIN_VALUE;
-                    int maxlat = Integer.MIN_VALUE;
-                    int maxlon = Integer.MIN_VALUE;
+                    int semi = i+1;
+                    while (semi<e && b[semi]!=';') semi++;
+                    if (semi>=e) break;
 
-                    int c = r.getAttributeCount();
-                    for (int i=0;i<c;i++)
+                    sb.append(new String(b,start,i-start,StandardCharsets.UTF_8));
+                    String entity = new String(b,i+1,semi-i-1,StandardCharsets.UTF_8);
+                    switch (entity)
                     {
-                        String aname = r.getAttributeLocalName(i);
-                        if ("minlat".equals(aname))
-                            minlat = (int)(0.5+10000000*Double.parseDouble(r.getAttributeValue(i)));
-                        else if ("minlon".equals(aname))
-                            minlon = (int)(0.5+10000000*Double.parseDouble(r.getAttributeValue(i)));
-                        else if ("maxlat".equals(aname))
-                            maxlat = (int)(0.5+10000000*Double.parseDouble(r.getAttributeValue(i)));
-                        else if ("maxlon".equals(aname))
-                            maxlon = (int)(0.5+10000000*Double.parseDouble(r.getAttributeValue(i)));
+                        case "amp" -> sb.append('&');
+                        case "lt" -> sb.append('<');
+                        case "gt" -> sb.append('>');
+                        case "quot" -> sb.append('"');
+                        case "apos" -> sb.append('\'');
+                        default ->
+                        {
+                            try {
+                                if (entity.startsWith("#x"))
+                                    sb.appendCodePoint(Integer.parseInt(entity.substring(2),16));
+                                else if (entity.startsWith("#"))
+                                    sb.appendCodePoint(Integer.parseInt(entity.substring(1)));
+                                else
+                                    sb.append('&').append(entity).append(';');
+                            } catch (IllegalArgumentException ex) { sb.append('&').append(entity).append(';'); }
+                        }
                     }
-
-                    return new Bounds(minlon,minlat,maxlon,maxlat);
+                    i = semi;
+                    start = semi+1;
                 }
             }
-            else if (code==XMLStreamConstants.END_ELEMENT)
-            {
-                String name = r.getName().toString();
-
-                if ("node".equals(name))
-                    return new OSMNode(id,version,timestamp,changeset,uid,user,lon,lat,tags);
-                else if ("way".equals(name))
-                    return new OSMWay(id,version,timestamp,changeset,uid,user,nds,tags);
-                else if ("relation".equals(name))
-                    return new OSMRelation(id,version,timestamp,changeset,uid,user,members,tags);
-            }
-        } catch (XMLStreamException e) { throw new IOException("XMLStreamException"); }
-    }
+            sb.append(new String(b,start,e-start,StandardCharsets.UTF_8));
+            return sb.toString();
+        }
 
-    private void checkBasicData(String name, String value)
-    {
-        if ("id".equals(name))
-            id = Long.parseLong(value);
-        else if ("version".equals(name))
-            version = Integer.parseInt(value);
-        else if ("timestamp".equals(name))
-        {
-            DateTimeFormatter f = DateTimeFormatter.ofPattern("uuuu-MM-dd'T'HH:mm:ss'Z'");
-            timestamp = LocalDateTime.from(f.parse(value)).toEpochSecond(ZoneOffset.UTC);
-        }
-        else if ("changeset".equals(name))
-            changeset = Long.parseLong(value);
-        else if ("uid".equals(name))
-            uid = Integer.parseInt(value);
-        else if ("user".equals(name))
-            user = value;
+        //////////////////////////////////////////////////////////////////
+
+        private boolean isSpace(byte c)
+        {
+            return c==' ' || c=='\t' || c=='\n' || c=='\r';
+        }
+
+        private boolean startsWith(byte[] t)
+        {
+            return Arrays.equals(b,pos,Math.min(end,pos+t.length),t,0,t.length);
+        }
+
+        private void skip(byte[] t)
+        {
+            while (pos<end && !Arrays.equals(b,pos,Math.min(end,pos+t.length),t,0,t.length))
+                pos++;
+            pos = Math.min(end,pos+t.length);
+        }
     }
 }
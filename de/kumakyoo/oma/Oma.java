@@ -33,6 +33,13 @@ public class Oma
     static boolean silent = false;
 
     static long memlimit = 100_000_000;
+    static long tmp_mem = 0;
+
+    static boolean mmap = false;
+
+    static String node_store = "array";
+
+    static int threads = Runtime.getRuntime().availableProcessors();
 
     private static long start,stop,start1,stop1,start2,stop2,start3,stop3;
 
@@ -159,6 +166,10 @@ public class Oma
         System.err.println("                 default: 1000");
         System.err.println("  -tmp <dir>     directory to use for tmp files; default: default tmp directory");
         System.err.println("  -m <limit>     set amount of spare memory; default: "+Tools.humanReadable(memlimit));
+        System.err.println("  -tmpmem <size> keep in-memory tmp files outside of the heap, using <size>");
+        System.err.println("  -mmap          memory map input file (o5m and pbf only) and tmp files");
+        System.err.println("  -n <store>     where to keep node locations (array, compressed, flat, sort); default: array");
+        System.err.println("  -j <threads>   number of threads used for decoding input; default: "+threads);
         System.err.println();
         System.err.println("  --help         print this help");
         System.exit(-1);
@@ -180,6 +191,8 @@ public class Oma
                     zip_chunks = false;
                 else if (args[pos].equals("-1"))
                     one_element = true;
+                else if (args[pos].equals("-mmap"))
+                    mmap = true;
                 else if (args[pos].equals("-b"))
                 {
                     if (pos==args.length-1) usage("missing filename after '-b'");
@@ -211,6 +224,13 @@ public class Oma
                     if (memlimit<0) usage("invalid memory limit '"+args[pos+1]+"'");
                     pos++;
                 }
+                else if (args[pos].equals("-tmpmem"))
+                {
+                    if (pos==args.length-1) usage("missing parameter after '-tmpmem'");
+                    tmp_mem = Tools.fromHumanReadable(args[pos+1]);
+                    if (tmp_mem<0) usage("invalid memory size '"+args[pos+1]+"'");
+                    pos++;
+                }
                 else if (args[pos].equals("-c"))
                 {
                     if (pos==args.length-1) usage("missing parameter after '-c'");
@@ -220,6 +240,23 @@ public class Oma
                     if (max_chunks<1) usage("invalid chunk limit '"+args[pos+1]+"'");
                     pos++;
                 }
+                else if (args[pos].equals("-n"))
+                {
+                    if (pos==args.length-1) usage("missing parameter after '-n'");
+                    node_store = args[pos+1];
+                    if (!"array".equals(node_store) && !"compressed".equals(node_store) && !"flat".equals(node_store) && !"sort".equals(node_store))
+                        usage("unknown node store '"+args[pos+1]+"'");
+                    pos++;
+                }
+                else if (args[pos].equals("-j"))
+                {
+                    if (pos==args.length-1) usage("missing parameter after '-j'");
+                    try {
+                        threads = Integer.parseInt(args[pos+1]);
+                    } catch (Exception e) { usage("invalid number of threads '"+args[pos+1]+"'"); }
+                    if (threads<1) usage("invalid number of threads '"+args[pos+1]+"'");
+                    pos++;
+                }
                 else if (args[pos].equals("--help"))
                     usage(null);
                 else
@@ -286,6 +323,8 @@ public class Oma
         System.err.println("- Increase amount of spare memory using -m flag.");
         System.err.println("- Decrease(!) jvm heap size using (java flag) -Xmx.");
         System.err.println("- Use a different java GC (e.g. (java flag) -XX:+UseParallelGC).");
+        if (tmp_mem>0)
+            System.err.println("- Increase (java flag) -XX:MaxDirectMemorySize or decrease -tmpmem.");
         System.err.println("****************************************************************");
     }
 }
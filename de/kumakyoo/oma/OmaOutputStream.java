@@ -44,6 +44,14 @@ public class OmaOutputStream extends DataOutputStream
         out.release();
     }
 
+    // Appends the complete content of in, see
+    // PositionOutputStream.transferFrom.
+    public boolean transferFrom(OmaInputStream in) throws IOException
+    {
+        flush();
+        return out!=null && out.transferFrom(in.in);
+    }
+
     public PositionOutputStream getStream() throws IOException
     {
         close();
@@ -2,60 +2,113 @@ package de.kumakyoo.oma;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 import java.io.IOException;
 import java.io.EOFException;
+import java.io.InputStream;
 import java.io.DataInputStream;
 import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.nio.file.Files;
-import java.util.zip.InflaterInputStream;
-import java.nio.charset.StandardCharsets;
+import java.util.zip.Inflater;
+import java.util.zip.DataFormatException;
 
 public class PBFReader extends PackedIntegerReader
 {
+    private static final byte[] TYPES = {'n','w','r'};
+
+    // Names of the data fields of a blob.
+    private static final String[] COMPRESSIONS = {null,"raw",null,"zlib","lzma","bzip2","lz4","zstd"};
+
+    // Decompressors for the data fields of a blob, indexed by field
+    // number. Further compressions (lzma, zstd) can be added with
+    // registerDecompressor.
+    private static final Map<Integer, Decompressor> DECOMPRESSORS = new ConcurrentHashMap<>(Map.of(3,PBFReader::inflate,6,LZ4::decompress));
+
+    public static void registerDecompressor(int field, Decompressor d)
+    {
+        DECOMPRESSORS.put(field,d);
+    }
+
     private DataInputStream din;
-    private PrimitiveBlock pb = null;
+    private MappedInputStream map = null;
 
     public PBFReader(Path filename) throws IOException
     {
-        din = new DataInputStream(new BufferedInputStream(Files.newInputStream(filename)));
+        this(new BufferedInputStream(Files.newInputStream(filename)));
+    }
+
+    // If the file is memory mapped, the blobs are not copied but
+    // handed out as slices of the mapping.
+    public PBFReader(InputStream in)
+    {
+        din = new DataInputStream(in);
+        if (in instanceof MappedInputStream)
+            map = (MappedInputStream)in;
+
+        if (Oma.threads>1)
+            startPipeline("PBF");
     }
 
     public void close() throws IOException
     {
+        stopPipeline();
         din.close();
     }
 
-    public Element next() throws IOException
+    protected Future<List<Element>> readBlock(Executor exec) throws IOException
+    {
+        RawBlob rb = readBlob();
+        return rb==null?null:submit(() -> decode(rb),null,exec);
+    }
+
+    //////////////////////////////////////////////////////////////////
+
+    private RawBlob readBlob() throws IOException
     {
         int len = 0;
-        while (true)
+        try {
+            len = din.readInt(); // sic!
+        } catch (EOFException e) { return null; }
+
+        BlobHeader bh = new BlobHeader(new PackedIntegerArray(readBytes(din,len)));
+        if (map!=null)
+            return new RawBlob(bh.type,map.slice(bh.datasize));
+        return new RawBlob(bh.type,ByteBuffer.wrap(readBytes(din,bh.datasize)));
+    }
+
+    private List<Element> decode(RawBlob rb) throws IOException
+    {
+        List<Element> erg = new ArrayList<>();
+
+        Blob b = new Blob(rb.data);
+        if ("OSMHeader".equals(rb.type))
         {
-            if (pb!=null)
-            {
-                Element e = pb.next();
-                if (e!=null) return e;
-                pb = null;
-            }
+            Bounds bounds = new HeaderBlock(b.getData()).getBounds();
+            if (bounds!=null) erg.add(bounds);
+        }
+        else if ("OSMData".equals(rb.type))
+            new PrimitiveBlock(b.getData()).decode(erg);
+        else
+            throw new IOException("unknown PBF type: "+rb.type);
 
-            try {
-                len = din.readInt(); // sic!
-            } catch (EOFException e) { return null; }
+        return erg;
+    }
 
-            BlobHeader bh = new BlobHeader(new DataInputStream(new ByteArrayInputStream(readBytes(din,len))));
-            Blob b = new Blob(new DataInputStream(new ByteArrayInputStream(readBytes(din,bh.datasize))));
-            if ("OSMHeader".equals(bh.type))
-            {
-                Bounds bounds = new HeaderBlock(b.din).getBounds();
-                if (bounds!=null) return bounds;
-            }
-            else if ("OSMData".equals(bh.type))
-                pb = new PrimitiveBlock(b.din);
-            else
-                throw new IOException("unknown PBF type: "+bh.type);
+    class RawBlob
+    {
+        String type;
+        ByteBuffer data;
+
+        public RawBlob(String type, ByteBuffer data)
+        {
+            this.type = type;
+            this.data = data;
         }
     }
 
@@ -63,18 +116,14 @@ public class PBFReader extends PackedIntegerReader
 
     abstract class Message
     {
-        DataInputStream in;
+        PackedIntegerArray in;
 
-        public Message(DataInputStream in) throws IOException
+        public Message(PackedIntegerArray in) throws IOException
         {
             this.in = in;
 
-            if (this instanceof PrimitiveGroup) return;
-
-            while (true)
-                try {
-                    readData((int)u(in)>>3);
-                } catch (EOFException ex) { break; }
+            while (in.hasMore())
+                readData((int)in.u()>>3);
         }
 
         abstract public void readData(int nr) throws IOException;
@@ -85,7 +134,7 @@ public class PBFReader extends PackedIntegerReader
         String type;
         int datasize;
 
-        public BlobHeader(DataInputStream in) throws IOException
+        public BlobHeader(PackedIntegerArray in) throws IOException
         {
             super(in);
         }
@@ -94,30 +143,60 @@ public class PBFReader extends PackedIntegerReader
         {
             switch (nr)
             {
-                case 1 -> type = readString(in);
-                case 3 -> datasize = (int)u(in);
+                case 1 -> type = in.string();
+                case 3 -> datasize = (int)in.u();
                 default -> throw new IOException("unknown PBF BlobHeader element: "+nr);
             }
         }
     }
 
-    class Blob extends Message
+    // The blob is read directly from a ByteBuffer, which may be a
+    // slice of a memory mapped file. Raw data is used as it is,
+    // compressed data is handed to the decompressor registered for
+    // its field.
+    class Blob
     {
-        DataInputStream din;
+        int rawsize;
+        int field;
+        ByteBuffer data;
 
-        public Blob(DataInputStream in) throws IOException
+        public Blob(ByteBuffer in) throws IOException
         {
-            super(in);
+            while (in.hasRemaining())
+            {
+                int nr = (int)u(in)>>3;
+                switch (nr)
+                {
+                    case 2 -> rawsize = (int)u(in);
+                    case 1,3,4,5,6,7 ->
+                    {
+                        int len = (int)u(in);
+                        if (len<0 || len>in.remaining()) throw new EOFException();
+                        field = nr;
+                        data = in.slice(in.position(),len);
+                        in.position(in.position()+len);
+                    }
+                    default -> throw new IOException("unknown PBF Blob element: "+nr);
+                }
+            }
         }
 
-        public void readData(int nr) throws IOException
+        public PackedIntegerArray getData() throws IOException
         {
-            switch (nr)
+            if (data==null) throw new IOException("missing PBF Blob data");
+
+            if (field==1)
             {
-                case 2 -> u(in);
-                case 3 -> din = new DataInputStream(new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(readBytes(in)))));
-                default -> throw new IOException("unknown PBF Blob element: "+nr);
+                if (data.hasArray())
+                    return new PackedIntegerArray(data.array(),data.arrayOffset(),data.arrayOffset()+data.remaining());
+                byte[] raw = new byte[data.remaining()];
+                data.get(raw);
+                return new PackedIntegerArray(raw);
             }
+
+            Decompressor d = DECOMPRESSORS.get(field);
+            if (d==null) throw new IOException("unsupported PBF compression: "+COMPRESSIONS[field]);
+            return new PackedIntegerArray(d.decompress(data,rawsize));
         }
     }
 
@@ -125,7 +204,7 @@ public class PBFReader extends PackedIntegerReader
     {
         private Bounds bounds;
 
-        public HeaderBlock(DataInputStream in) throws IOException
+        public HeaderBlock(PackedIntegerArray in) throws IOException
         {
             super(in);
         }
@@ -134,15 +213,15 @@ public class PBFReader extends PackedIntegerReader
         {
             switch (nr)
             {
-                case 1 -> bounds = new HeaderBBox(new DataInputStream(new ByteArrayInputStream(readBytes(in)))).getBounds();
+                case 1 -> bounds = new HeaderBBox(in.field()).getBounds();
                 case 4 ->
                 {
-                    String feature = readString(in);
+                    String feature = in.string();
                     if (!"OsmSchema-V0.6".equals(feature) && !"DenseNodes".equals(feature))
                         throw new IOException("unknown required PBF feature: "+feature);
                 }
-                case 5,16,17,34 -> readString(in);
-                case 32,33 -> u(in);
+                case 5,16,17,34 -> in.string();
+                case 32,33 -> in.u();
                 default -> throw new IOException("unknown PBF HeaderBlock element: "+nr);
             }
         }
@@ -157,7 +236,7 @@ public class PBFReader extends PackedIntegerReader
     {
         private long left,right,top,bottom;
 
-        public HeaderBBox(DataInputStream in) throws IOException
+        public HeaderBBox(PackedIntegerArray in) throws IOException
         {
             super(in);
         }
@@ -166,10 +245,10 @@ public class PBFReader extends PackedIntegerReader
         {
             switch (nr)
             {
-                case 1 -> left = s(in);
-                case 2 -> right = s(in);
-                case 3 -> top = s(in);
-                case 4 -> bottom = s(in);
+                case 1 -> left = in.s();
+                case 2 -> right = in.s();
+                case 3 -> top = in.s();
+                case 4 -> bottom = in.s();
                 default -> throw new IOException("unknown PBF HeaderBBox element: "+nr);
             }
         }
@@ -183,301 +262,306 @@ public class PBFReader extends PackedIntegerReader
     class PrimitiveBlock extends Message
     {
         private StringTable st;
-        private PrimitiveGroup pg;
+        private List<PackedIntegerArray> pg;
+
+        // Coordinates are given in units of granularity nanodegrees
+        // relative to the offsets, timestamps in units of
+        // date_granularity milliseconds. 0 means default.
+        int granularity;
+        int date_granularity;
+        long lat_offset;
+        long lon_offset;
 
-        public PrimitiveBlock(DataInputStream in) throws IOException
+        public PrimitiveBlock(PackedIntegerArray in) throws IOException
         {
             super(in);
         }
 
         public void readData(int nr) throws IOException
         {
+            if (pg==null) pg = new ArrayList<>();
             switch (nr)
             {
-                case 1 -> st = new StringTable(new DataInputStream(new ByteArrayInputStream(readBytes(in))));
-                case 2 -> pg = new PrimitiveGroup(new DataInputStream(new ByteArrayInputStream(readBytes(in))));
+                case 1 -> st = new StringTable(in.field());
+                case 2 -> pg.add(in.field());
+                case 17 -> granularity = (int)in.u();
+                case 18 -> date_granularity = (int)in.u();
+                case 19 -> lat_offset = in.u();
+                case 20 -> lon_offset = in.u();
                 default -> throw new IOException("unknown PBF PrimitiveBlock element: "+nr);
             }
         }
 
-        public Element next() throws IOException
+        public void decode(List<Element> erg) throws IOException
         {
-            return pg.next(st.getTable());
-        }
-    }
+            if (pg==null) return;
 
-    class PrimitiveGroup extends Message
-    {
-        static final String[] TYPES = {"node","way","relation"};
+            if (granularity==0) granularity = 100;
+            if (date_granularity==0) date_granularity = 1000;
 
-        DenseNodes dn;
-        Way way;
-        Relation rel;
+            String[] table = st.getTable().toArray(new String[0]);
+            for (PackedIntegerArray data:pg)
+                new PrimitiveGroup(data,this).decode(table,erg);
+        }
 
-        public PrimitiveGroup(DataInputStream in) throws IOException
+        // With default values, coordinates are already in units of
+        // 100 nanodegrees.
+        public boolean hasDefaultCoordinates()
         {
-            super(in);
+            return granularity==100 && lat_offset==0 && lon_offset==0;
         }
 
-        public void readData(int nr) throws IOException
+        public void convert(long[] raw, int[] dst, int n, long offset)
         {
-            switch (nr)
-            {
-                case 2 -> dn = new DenseNodes(new DataInputStream(new ByteArrayInputStream(readBytes(in))));
-                case 3 -> way = new Way(new DataInputStream(new ByteArrayInputStream(readBytes(in))));
-                case 4 -> rel = new Relation(new DataInputStream(new ByteArrayInputStream(readBytes(in))));
-                default -> throw new IOException("unknown PBF PrimitiveGroup element: "+nr);
-            }
+            for (int i=0;i<n;i++)
+                dst[i] = (int)Math.floorDiv(offset+granularity*raw[i]+50,100);
         }
 
-        public Element next(List<String> st) throws IOException
+        public void convertTimestamps(long[] ts, int n)
         {
-            if (dn==null && way==null && rel==null)
-                try {
-                    readData((int)u(in)>>3);
-                } catch (EOFException ex) {}
+            if (date_granularity==1000) return;
+            for (int i=0;i<n;i++)
+                ts[i] = ts[i]*date_granularity/1000;
+        }
 
-            if (dn!=null)
-            {
-                Element e = dn.next(st);
-                if (e==null)
-                    dn = null;
-                return e;
-            }
+        public long timestamp(long ts)
+        {
+            return date_granularity==1000?ts:ts*date_granularity/1000;
+        }
+    }
 
-            if (way!=null)
-            {
-                Map<String, String> t = new HashMap<>();
-                if (way.keys!=null)
-                {
-                    try {
-                        while (true)
-                            t.put(st.get((int)u(way.keys)),st.get((int)u(way.values)));
-                    } catch (EOFException e) {}
-                }
+    // A group contains elements of one type only. They are decoded
+    // directly from the byte array of the message into a batch.
+    class PrimitiveGroup
+    {
+        PackedIntegerArray in;
+        PrimitiveBlock block;
 
-                long delta = 0;
-                List<Long> nds = new ArrayList<>();
-                while (true)
-                {
-                    try {
-                        delta += s(way.refs);
-                    } catch (EOFException e) { break; }
-                    nds.add(delta);
-                }
+        public PrimitiveGroup(PackedIntegerArray in, PrimitiveBlock block)
+        {
+            this.in = in;
+            this.block = block;
+        }
 
-                Element e = new OSMWay(way.id,way.info.version,way.info.ts,way.info.cs,way.info.uid,st.get(way.info.user),nds,t);
-                way = null;
-                return e;
-            }
+        public void decode(String[] st, List<Element> erg) throws IOException
+        {
+            WayBatch ways = null;
+            RelationBatch relations = null;
 
-            if (rel!=null)
+            while (in.hasMore())
             {
-                Map<String, String> t = new HashMap<>();
-                if (rel.keys!=null)
+                int nr = (int)in.u()>>3;
+                switch (nr)
                 {
-                    try {
-                        while (true)
-                            t.put(st.get((int)u(rel.keys)),st.get((int)u(rel.values)));
-                    } catch (EOFException e) {}
-                }
-
-                long delta = 0;
-                List<OSMMember> members = new ArrayList<>();
-                try {
-                    while (true)
+                    case 2 -> erg.add(new DenseNodes(in.field(),block).decode(st));
+                    case 3 ->
                     {
-                        String role = st.get((int)u(rel.roles));
-                        delta += s(rel.members);
-                        String type = TYPES[(int)u(rel.types)];
-
-                        members.add(new OSMMember(type,delta,role));
+                        if (ways==null)
+                        {
+                            ways = new WayBatch(BATCH_SIZE,st);
+                            erg.add(ways);
+                        }
+                        decodeWay(in.field(),ways);
                     }
-                } catch (EOFException e) {}
-
-                Element e = new OSMRelation(rel.id,rel.info.version,rel.info.ts,rel.info.cs,rel.info.uid,st.get(rel.info.user),members,t);
-                rel = null;
-                return e;
-
+                    case 4 ->
+                    {
+                        if (relations==null)
+                        {
+                            relations = new RelationBatch(BATCH_SIZE,st);
+                            erg.add(relations);
+                        }
+                        decodeRelation(in.field(),relations);
+                    }
+                    default -> throw new IOException("unknown PBF PrimitiveGroup element: "+nr);
+                }
             }
-
-            return null;
         }
-    }
 
-    class DenseNodes extends Message
-    {
-        DataInputStream ids;
-        DataInputStream lat;
-        DataInputStream lon;
-        DataInputStream tags;
+        private void decodeWay(PackedIntegerArray in, WayBatch b) throws IOException
+        {
+            long id = 0;
+            PackedIntegerArray keys = null;
+            PackedIntegerArray values = null;
+            PackedIntegerArray refs = null;
+            Info info = null;
 
-        long lastid = 0;
-        long lastlat = 0;
-        long lastlon = 0;
+            while (in.hasMore())
+            {
+                int nr = (int)in.u()>>3;
+                switch (nr)
+                {
+                    case 1 -> id = in.u();
+                    case 2 -> keys = in.field();
+                    case 3 -> values = in.field();
+                    case 4 -> info = new Info(in.field());
+                    case 8 -> refs = in.field();
+                    default -> throw new IOException("unknown PBF Way element: "+nr);
+                }
+            }
 
-        DenseInfo di;
+            if (info==null) info = new Info();
+            b.add(id,info.version,block.timestamp(info.ts),info.cs,info.uid,info.user);
 
-        public DenseNodes(DataInputStream in) throws IOException
-        {
-            super(in);
-        }
+            if (keys!=null)
+                while (keys.hasMore())
+                    b.addTag((int)keys.u(),(int)values.u());
 
-        public void readData(int nr) throws IOException
-        {
-            switch (nr)
+            if (refs!=null)
             {
-                case 1 -> ids = new DataInputStream(new ByteArrayInputStream(readBytes(in)));
-                case 5 -> di = new DenseInfo(new DataInputStream(new ByteArrayInputStream(readBytes(in))));
-                case 8 -> lat = new DataInputStream(new ByteArrayInputStream(readBytes(in)));
-                case 9 -> lon = new DataInputStream(new ByteArrayInputStream(readBytes(in)));
-                case 10 -> tags = new DataInputStream(new ByteArrayInputStream(readBytes(in)));
-                default -> throw new IOException("unknown PBF DenseNodes element: "+nr);
+                long delta = 0;
+                while (refs.hasMore())
+                    b.addRef(delta += refs.s());
             }
         }
 
-        public Element next(List<String> st) throws IOException
+        private void decodeRelation(PackedIntegerArray in, RelationBatch b) throws IOException
         {
-            try {
-                lastid += s(ids);
-            } catch (EOFException e) { return null; }
-            lastlat += s(lat);
-            lastlon += s(lon);
+            long id = 0;
+            PackedIntegerArray keys = null;
+            PackedIntegerArray values = null;
+            PackedIntegerArray roles = null;
+            PackedIntegerArray members = null;
+            PackedIntegerArray types = null;
+            Info info = null;
 
-            Map<String, String> t = new HashMap<>();
-            try {
-                while (true)
+            while (in.hasMore())
+            {
+                int nr = (int)in.u()>>3;
+                switch (nr)
                 {
-                    long index = u(tags);
-                    if (index==0) break;
-                    String key = st.get((int)index);
-                    index = u(tags);
-                    String value = st.get((int)index);
-                    t.put(key,value);
+                    case 1 -> id = in.u();
+                    case 2 -> keys = in.field();
+                    case 3 -> values = in.field();
+                    case 4 -> info = new Info(in.field());
+                    case 8 -> roles = in.field();
+                    case 9 -> members = in.field();
+                    case 10 -> types = in.field();
+                    default -> throw new IOException("unknown PBF Relation element: "+nr);
                 }
-            } catch (EOFException e) {}
-
-            return new OSMNode(lastid,(int)di.nextVersion(),di.nextTS(),di.nextCS(),(int)di.nextUID(),st.get((int)di.nextUser()),(int)lastlon,(int)lastlat,t);
-        }
-    }
-
-    class DenseInfo extends Message
-    {
-        DataInputStream version;
-        DataInputStream ts;
-        DataInputStream cs;
-        DataInputStream uid;
-        DataInputStream user;
+            }
 
-        long lastversion = 0;
-        long lastts = 0;
-        long lastcs = 0;
-        long lastuid = 0;
-        long lastuser = 0;
+            if (info==null) info = new Info();
+            b.add(id,info.version,block.timestamp(info.ts),info.cs,info.uid,info.user);
 
-        public DenseInfo(DataInputStream in) throws IOException
-        {
-            super(in);
-        }
+            if (keys!=null)
+                while (keys.hasMore())
+                    b.addTag((int)keys.u(),(int)values.u());
 
-        public void readData(int nr) throws IOException
-        {
-            switch (nr)
+            if (members!=null)
             {
-                case 1 -> version = new DataInputStream(new ByteArrayInputStream(readBytes(in)));
-                case 2 -> ts = new DataInputStream(new ByteArrayInputStream(readBytes(in)));
-                case 3 -> cs = new DataInputStream(new ByteArrayInputStream(readBytes(in)));
-                case 4 -> uid = new DataInputStream(new ByteArrayInputStream(readBytes(in)));
-                case 5 -> user = new DataInputStream(new ByteArrayInputStream(readBytes(in)));
-                default -> throw new IOException("unknown PBF DenseInfo element: "+nr);
+                long delta = 0;
+                while (members.hasMore())
+                    b.addMember(TYPES[(int)types.u()],delta += members.s(),(int)roles.u());
             }
         }
+    }
 
-        public long nextVersion() throws IOException
-        {
-            return u(version);
-        }
+    // Dense nodes are decoded column by column directly from the byte
+    // array of the message into a NodeBatch. Thus no objects need to be
+    // created per node.
+    class DenseNodes
+    {
+        PackedIntegerArray in;
+        PrimitiveBlock block;
 
-        public long nextTS() throws IOException
+        public DenseNodes(PackedIntegerArray in, PrimitiveBlock block)
         {
-            return lastts += s(ts);
+            this.in = in;
+            this.block = block;
         }
 
-        public long nextCS() throws IOException
+        public NodeBatch decode(String[] st) throws IOException
         {
-            return lastcs += s(cs);
-        }
+            PackedIntegerArray ids = null;
+            PackedIntegerArray lat = null;
+            PackedIntegerArray lon = null;
+            PackedIntegerArray tags = null;
+            PackedIntegerArray info = null;
 
-        public long nextUID() throws IOException
-        {
-            return lastuid += s(uid);
-        }
+            while (in.hasMore())
+            {
+                int nr = (int)in.u()>>3;
+                switch (nr)
+                {
+                    case 1 -> ids = in.field();
+                    case 5 -> info = in.field();
+                    case 8 -> lat = in.field();
+                    case 9 -> lon = in.field();
+                    case 10 -> tags = in.field();
+                    default -> throw new IOException("unknown PBF DenseNodes element: "+nr);
+                }
+            }
 
-        public long nextUser() throws IOException
-        {
-            return lastuser += s(user);
-        }
-    }
+            int n = ids==null?0:ids.count();
+            NodeBatch b = new NodeBatch(n,st);
+            b.size = n;
+            if (n==0) return b;
 
-    class Way extends Message
-    {
-        long id;
-        Info info;
-        DataInputStream keys;
-        DataInputStream values;
-        DataInputStream refs;
+            ids.deltas(b.id,n);
+            if (block.hasDefaultCoordinates())
+            {
+                lat.deltas(b.lat,n);
+                lon.deltas(b.lon,n);
+            }
+            else
+            {
+                long[] raw = new long[n];
+                lat.deltas(raw,n);
+                block.convert(raw,b.lat,n,block.lat_offset);
+                lon.deltas(raw,n);
+                block.convert(raw,b.lon,n,block.lon_offset);
+            }
+            if (info!=null)
+            {
+                decodeInfo(info,b);
+                block.convertTimestamps(b.timestamp,n);
+            }
+            if (tags!=null)
+                decodeTags(tags,b);
 
-        public Way(DataInputStream in) throws IOException
-        {
-            super(in);
+            return b;
         }
 
-        public void readData(int nr) throws IOException
+        private void decodeInfo(PackedIntegerArray in, NodeBatch b) throws IOException
         {
-            switch (nr)
+            while (in.hasMore())
             {
-                case 1 -> id = u(in);
-                case 2 -> keys = new DataInputStream(new ByteArrayInputStream(readBytes(in)));
-                case 3 -> values = new DataInputStream(new ByteArrayInputStream(readBytes(in)));
-                case 4 -> info = new Info(new DataInputStream(new ByteArrayInputStream(readBytes(in))));
-                case 8 -> refs = new DataInputStream(new ByteArrayInputStream(readBytes(in)));
-                default -> throw new IOException("unknown PBF Way element: "+nr);
+                int nr = (int)in.u()>>3;
+                switch (nr)
+                {
+                    case 1 -> in.field().values(b.version,b.size);
+                    case 2 -> in.field().deltas(b.timestamp,b.size);
+                    case 3 -> in.field().deltas(b.changeset,b.size);
+                    case 4 -> in.field().deltas(b.uid,b.size);
+                    case 5 -> in.field().deltas(b.user,b.size);
+                    default -> throw new IOException("unknown PBF DenseInfo element: "+nr);
+                }
             }
         }
-    }
-
-    class Relation extends Message
-    {
-        long id;
-        Info info;
-        DataInputStream keys;
-        DataInputStream values;
-        DataInputStream roles;
-        DataInputStream members;
-        DataInputStream types;
-
-        public Relation(DataInputStream in) throws IOException
-        {
-            super(in);
-        }
 
-        public void readData(int nr) throws IOException
+        // Tags of all nodes are saved in one array, each node terminated
+        // by a zero.
+        private void decodeTags(PackedIntegerArray in, NodeBatch b) throws IOException
         {
-            switch (nr)
+            int[] kv = new int[in.count()];
+            int c = 0;
+            for (int i=0;i<b.size;i++)
             {
-                case 1 -> id = u(in);
-                case 2 -> keys = new DataInputStream(new ByteArrayInputStream(readBytes(in)));
-                case 3 -> values = new DataInputStream(new ByteArrayInputStream(readBytes(in)));
-                case 4 -> info = new Info(new DataInputStream(new ByteArrayInputStream(readBytes(in))));
-                case 8 -> roles = new DataInputStream(new ByteArrayInputStream(readBytes(in)));
-                case 9 -> members = new DataInputStream(new ByteArrayInputStream(readBytes(in)));
-                case 10 -> types = new DataInputStream(new ByteArrayInputStream(readBytes(in)));
-                default -> throw new IOException("unknown PBF Relation element: "+nr);
+                b.tags[i] = c;
+                while (in.hasMore())
+                {
+                    int index = (int)in.u();
+                    if (index==0) break;
+                    kv[c++] = index;
+                    kv[c++] = (int)in.u();
+                }
             }
+            b.tags[b.size] = c;
+            b.kv = kv;
         }
     }
 
-    class Info extends Message
+    class Info
     {
         int version;
         long ts;
@@ -485,21 +569,24 @@ public class PBFReader extends PackedIntegerReader
         int uid;
         int user;
 
-        public Info(DataInputStream in) throws IOException
+        public Info()
         {
-            super(in);
         }
 
-        public void readData(int nr) throws IOException
+        public Info(PackedIntegerArray in) throws IOException
         {
-            switch (nr)
+            while (in.hasMore())
             {
-                case 1 -> version = (int)u(in);
-                case 2 -> ts = u(in);
-                case 3 -> cs = u(in);
-                case 4 -> uid = (int)u(in);
-                case 5 -> user = (int)u(in);
-                default -> throw new IOException("unknown PBF Info element: "+nr);
+                int nr = (int)in.u()>>3;
+                switch (nr)
+                {
+                    case 1 -> version = (int)in.u();
+                    case 2 -> ts = in.u();
+                    case 3 -> cs = in.u();
+                    case 4 -> uid = (int)in.u();
+                    case 5 -> user = (int)in.u();
+                    default -> throw new IOException("unknown PBF Info element: "+nr);
+                }
             }
         }
     }
@@ -508,7 +595,7 @@ public class PBFReader extends PackedIntegerReader
     {
         private List<String> table;
 
-        public StringTable(DataInputStream in) throws IOException
+        public StringTable(PackedIntegerArray in) throws IOException
         {
             super(in);
         }
@@ -518,7 +605,7 @@ public class PBFReader extends PackedIntegerReader
             if (table==null) table = new ArrayList<>();
             switch (nr)
             {
-                case 1 -> table.add(readString(in));
+                case 1 -> table.add(in.string());
                 default -> throw new IOException("unknown PBF StringTable element: "+nr);
             }
         }
@@ -531,17 +618,28 @@ public class PBFReader extends PackedIntegerReader
 
     //////////////////////////////////////////////////////////////////
 
-    private String readString(DataInputStream in) throws IOException
+    // Usually the size of the uncompressed data is known in advance,
+    // so the data can be inflated into an array of the final size.
+    private static byte[] inflate(ByteBuffer zlib, int rawsize) throws IOException
     {
-        int len = (int)u(in);
-        byte[] data = new byte[len];
-        in.readFully(data);
-        return new String(data,StandardCharsets.UTF_8);
-    }
+        Inflater inf = new Inflater();
+        try {
+            inf.setInput(zlib);
 
-    private byte[] readBytes(DataInputStream in) throws IOException
-    {
-        return readBytes(in,(int)u(in));
+            byte[] data = new byte[rawsize>0?rawsize:4*zlib.remaining()+64];
+            int len = 0;
+            while (!inf.finished() && (rawsize<=0 || len<rawsize))
+            {
+                if (len==data.length)
+                    data = Arrays.copyOf(data,2*data.length);
+                int n = inf.inflate(data,len,data.length-len);
+                if (n==0 && (inf.needsInput() || inf.needsDictionary()))
+                    throw new EOFException("truncated PBF Blob");
+                len += n;
+            }
+            return len==data.length?data:Arrays.copyOf(data,len);
+        } catch (DataFormatException e) { throw new IOException(e); }
+        finally { inf.end(); }
     }
 
     private byte[] readBytes(DataInputStream in, int len) throws IOException
@@ -0,0 +1,192 @@
+package de.kumakyoo.oma;
+
+import java.io.IOException;
+import java.io.EOFException;
+import java.nio.charset.StandardCharsets;
+
+// Decodes packed integers (varints as used in PBF and O5M) directly
+// from a byte array. No objects are created and several threads may
+// decode different arrays at the same time.
+//
+// Most values in OSM data are small (deltas, indices into string
+// tables), so one and two byte values are handled separately.
+public class PackedIntegerArray
+{
+    private byte[] b;
+    private int pos;
+    private int end;
+
+    public PackedIntegerArray(byte[] b)
+    {
+        this(b,0,b.length);
+    }
+
+    public PackedIntegerArray(byte[] b, int pos, int end)
+    {
+        this.b = b;
+        this.pos = pos;
+        this.end = end;
+    }
+
+    public boolean hasMore()
+    {
+        return pos<end;
+    }
+
+    public int available()
+    {
+        return end-pos;
+    }
+
+    //////////////////////////////////////////////////////////////////
+
+    public long u() throws IOException
+    {
+        int p = pos;
+        if (p+1<end)
+        {
+            int b0 = b[p];
+            if (b0>=0)
+            {
+                pos = p+1;
+                return b0;
+            }
+            int b1 = b[p+1];
+            if (b1>=0)
+            {
+                pos = p+2;
+                return (b0&0x7f)|(b1<<7);
+            }
+        }
+        return uSlow();
+    }
+
+    private long uSlow() throws IOException
+    {
+        long val = 0;
+        int shift = 0;
+
+        while (true)
+        {
+            if (pos>=end) throw new EOFException();
+            int next = b[pos++];
+
+            val |= (long)(next&0x7f)<<shift;
+            if (next>=0) return val;
+            shift += 7;
+        }
+    }
+
+    public long s() throws IOException
+    {
+        long val = u();
+        return (val>>>1)^-(val&1);
+    }
+
+    public int readUnsignedByte() throws IOException
+    {
+        if (pos>=end) throw new EOFException();
+        return b[pos++]&0xff;
+    }
+
+    public byte readByte() throws IOException
+    {
+        if (pos>=end) throw new EOFException();
+        return b[pos++];
+    }
+
+    //////////////////////////////////////////////////////////////////
+
+    // Returns the content of a length delimited field and skips it.
+    public PackedIntegerArray field() throws IOException
+    {
+        return field((int)u());
+    }
+
+    public PackedIntegerArray field(int len) throws IOException
+    {
+        if (len<0 || pos+len>end) throw new EOFException();
+        PackedIntegerArray erg = new PackedIntegerArray(b,pos,pos+len);
+        pos += len;
+        return erg;
+    }
+
+    public String string() throws IOException
+    {
+        int len = (int)u();
+        if (len<0 || pos+len>end) throw new EOFException();
+        String erg = new String(b,pos,len,StandardCharsets.UTF_8);
+        pos += len;
+        return erg;
+    }
+
+    // Reads a zero terminated string. Strings shorter than the
+    // limit of the cache are taken from the cache, if possible.
+    public String cstring(StringCache cache) throws IOException
+    {
+        int p = pos;
+        while (true)
+        {
+            if (p>=end) throw new EOFException();
+            if (b[p]==0) break;
+            p++;
+        }
+
+        String erg = cache==null?new String(b,pos,p-pos,StandardCharsets.UTF_8):cache.get(b,pos,p-pos);
+        pos = p+1;
+        return erg;
+    }
+
+    //////////////////////////////////////////////////////////////////
+
+    // Number of integers between the current position and the end.
+    public int count()
+    {
+        int count = 0;
+        for (int i=pos;i<end;i++)
+            if (b[i]>=0)
+                count++;
+        return count;
+    }
+
+    public void values(int[] dst, int n) throws IOException
+    {
+        for (int i=0;i<n;i++)
+            dst[i] = (int)u();
+    }
+
+    public void deltas(int[] dst, int n) throws IOException
+    {
+        long last = 0;
+        for (int i=0;i<n;i++)
+            dst[i] = (int)(last += s());
+    }
+
+    // Decodes n packed, delta coded signed integers. The loop is
+    // inlined by hand, because it is used for ids and coordinates of
+    // all nodes.
+    public void deltas(long[] dst, int n) throws IOException
+    {
+        long last = 0;
+        int p = pos;
+        for (int i=0;i<n;i++)
+        {
+            long val;
+            int b0;
+            if (p<end && (b0 = b[p])>=0)
+            {
+                val = b0;
+                p++;
+            }
+            else
+            {
+                pos = p;
+                val = uSlow();
+                p = pos;
+            }
+            last += (val>>>1)^-(val&1);
+            dst[i] = last;
+        }
+        pos = p;
+    }
+}
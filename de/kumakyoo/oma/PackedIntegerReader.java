@@ -1,50 +1,42 @@
 package de.kumakyoo.oma;
 
 import java.io.IOException;
+import java.io.EOFException;
 import java.io.DataInputStream;
+import java.nio.ByteBuffer;
 
-abstract public class PackedIntegerReader extends OSMReader
+// Packed integers within blocks are decoded by PackedIntegerArray.
+// Only lengths and the envelopes of PBF blobs are read here.
+abstract public class PackedIntegerReader extends BlockReader
 {
     protected long u(DataInputStream in) throws IOException
     {
         long val = 0;
-        long fak = 1;
+        int shift = 0;
 
         while (true)
         {
             int next = in.readUnsignedByte();
 
-            val += (next&0x7f)*fak;
-            if (next<0x80) break;
-            fak *= 0x80;
+            val |= (long)(next&0x7f)<<shift;
+            if (next<0x80) return val;
+            shift += 7;
         }
-        return val;
     }
 
-    protected long s(DataInputStream in) throws IOException
+    protected long u(ByteBuffer in) throws IOException
     {
         long val = 0;
-        long fak = 1;
-        boolean first = true;
-        boolean sign = false;
+        int shift = 0;
 
         while (true)
         {
-            int next = in.readUnsignedByte();
-
-            if (first)
-            {
-                sign = (next&0x01)==0x01;
-                next = (next&0x80) + ((next&0x7f)>>1);
-            }
-
-            val += (next&0x7f)*fak;
-            if (next<0x80) break;
-
-            fak *= first?0x40:0x80;
+            if (!in.hasRemaining()) throw new EOFException();
+            int next = in.get()&0xff;
 
-            first = false;
+            val |= (long)(next&0x7f)<<shift;
+            if (next<0x80) return val;
+            shift += 7;
         }
-        return sign?(-val-1):val;
     }
 }
@@ -0,0 +1,251 @@
+package de.kumakyoo.oma;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.ArrayList;
+
+// Sorts pairs of longs by their key. Pairs are collected in two
+// arrays. Whenever these are full, they are sorted and saved as a
+// run. After all pairs have been added, the runs are merged while
+// reading. If all pairs fit into the arrays, no run is saved at all.
+public class PairSorter
+{
+    private String name;
+
+    private long[] keys;
+    private long[] values;
+    private int c;
+    private int pos;
+
+    private List<OmaOutputStream> runs = new ArrayList<>();
+    private List<Integer> run_size = new ArrayList<>();
+
+    private OmaInputStream[] in;
+    private int[] left;
+    private long[] head_key;
+    private long[] head_value;
+    private int[] heap;
+    private int heap_size;
+
+    private long key;
+    private long value;
+
+    public PairSorter(String name, int capacity)
+    {
+        this.name = name;
+        keys = new long[capacity];
+        values = new long[capacity];
+    }
+
+    public void add(long key, long value) throws IOException
+    {
+        if (c==keys.length)
+            saveRun();
+
+        keys[c] = key;
+        values[c] = value;
+        c++;
+    }
+
+    // Ends adding pairs and prepares for reading them.
+    public void finish() throws IOException
+    {
+        if (runs.isEmpty())
+        {
+            sort(keys,values,0,c);
+            pos = 0;
+            return;
+        }
+
+        if (c>0) saveRun();
+        keys = values = null;
+
+        int n = runs.size();
+        in = new OmaInputStream[n];
+        left = new int[n];
+        head_key = new long[n];
+        head_value = new long[n];
+        heap = new int[n];
+
+        for (int i=0;i<n;i++)
+        {
+            in[i] = OmaInputStream.init(runs.get(i));
+            left[i] = run_size.get(i);
+            if (readHead(i))
+            {
+                heap[heap_size++] = i;
+                siftUp(heap_size-1);
+            }
+        }
+    }
+
+    // Moves on to the next pair. Returns false, if there are no more
+    // pairs.
+    public boolean next() throws IOException
+    {
+        if (in==null)
+        {
+            if (pos==c) return false;
+
+            key = keys[pos];
+            value = values[pos];
+            pos++;
+            return true;
+        }
+
+        if (heap_size==0) return false;
+
+        int r = heap[0];
+        key = head_key[r];
+        value = head_value[r];
+
+        if (!readHead(r))
+            heap[0] = heap[--heap_size];
+        siftDown(0);
+
+        return true;
+    }
+
+    public long key()
+    {
+        return key;
+    }
+
+    public long value()
+    {
+        return value;
+    }
+
+    public long runs()
+    {
+        return runs.size();
+    }
+
+    public void release() throws IOException
+    {
+        keys = values = null;
+        if (in!=null)
+            for (OmaInputStream s:in)
+                s.release();
+        in = null;
+        runs.clear();
+    }
+
+    //////////////////////////////////////////////////////////////////
+
+    private void saveRun() throws IOException
+    {
+        sort(keys,values,0,c);
+
+        OmaOutputStream out = OmaOutputStream.init(Tools.tmpFile(name+"_"+runs.size()));
+        for (int i=0;i<c;i++)
+        {
+            out.writeLong(keys[i]);
+            out.writeLong(values[i]);
+        }
+        out.close();
+
+        runs.add(out);
+        run_size.add(c);
+        c = 0;
+    }
+
+    private boolean readHead(int r) throws IOException
+    {
+        if (left[r]==0) return false;
+
+        head_key[r] = in[r].readLong();
+        head_value[r] = in[r].readLong();
+        left[r]--;
+        return true;
+    }
+
+    private void siftUp(int i)
+    {
+        while (i>0)
+        {
+            int parent = (i-1)/2;
+            if (head_key[heap[parent]]<=head_key[heap[i]]) return;
+            swap(heap,i,parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i)
+    {
+        while (true)
+        {
+            int min = i;
+            int l = 2*i+1;
+            int r = l+1;
+            if (l<heap_size && head_key[heap[l]]<head_key[heap[min]]) min = l;
+            if (r<heap_size && head_key[heap[r]]<head_key[heap[min]]) min = r;
+            if (min==i) return;
+            swap(heap,i,min);
+            i = min;
+        }
+    }
+
+    private static void swap(int[] a, int i, int j)
+    {
+        int h = a[i];
+        a[i] = a[j];
+        a[j] = h;
+    }
+
+    //////////////////////////////////////////////////////////////////
+
+    // Sorts keys[from..to) and moves the values along.
+    public static void sort(long[] keys, long[] values, int from, int to)
+    {
+        while (to-from>16)
+        {
+            int mid = (from+to)>>>1;
+            long a = keys[from];
+            long b = keys[mid];
+            long c = keys[to-1];
+            long pivot = a<b?(b<c?b:a<c?c:a):(a<c?a:b<c?c:b);
+
+            int i = from;
+            int j = to-1;
+            while (i<=j)
+            {
+                while (keys[i]<pivot) i++;
+                while (keys[j]>pivot) j--;
+                if (i<=j)
+                {
+                    swap(keys,values,i,j);
+                    i++;
+                    j--;
+                }
+            }
+
+            // Recursion on the smaller part only, to keep the stack small.
+            if (j+1-from<to-i)
+            {
+                sort(keys,values,from,j+1);
+                from = i;
+            }
+            else
+            {
+                sort(keys,values,i,to);
+                to = j+1;
+            }
+        }
+
+        for (int i=from+1;i<to;i++)
+            for (int j=i;j>from && keys[j-1]>keys[j];j--)
+                swap(keys,values,j,j-1);
+    }
+
+    private static void swap(long[] keys, long[] values, int i, int j)
+    {
+        long h = keys[i];
+        keys[i] = keys[j];
+        keys[j] = h;
+
+        h = values[i];
+        values[i] = values[j];
+        values[j] = h;
+    }
+}
@@ -7,6 +7,7 @@ import java.io.BufferedInputStream;
 import java.nio.file.Path;
 import java.nio.file.Files;
 import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 public class PositionInputStream extends InputStream
 {
@@ -18,6 +19,9 @@ public class PositionInputStream extends InputStream
 
     private InputStream in;
     private ByteArrayListInputStream balis;
+    private MappedInputStream map;
+
+    private static int deleted = 0;
 
     public PositionInputStream(PositionOutputStream out) throws IOException
     {
@@ -37,12 +41,20 @@ public class PositionInputStream extends InputStream
         init(filename);
     }
 
+    // With -mmap, files are memory mapped, so changing the position
+    // does not discard any buffers.
     private void init(Path filename) throws IOException
     {
+        fromDisk = true;
+        if (Oma.mmap)
+        {
+            in = map = new MappedInputStream(filename);
+            return;
+        }
+
         fis = new FileInputStream(filename.toString());
         fc = fis.getChannel();
         in = new BufferedInputStream(fis);
-        fromDisk = true;
     }
 
     public void release() throws IOException
@@ -57,11 +69,49 @@ public class PositionInputStream extends InputStream
             balis.release();
         balis = null;
         if (fromDisk)
-            Files.delete(filename);
+            delete();
         filename = null;
         Tools.gc();
     }
 
+    // On some systems (e.g. Windows) a memory mapped file cannot be
+    // deleted, as long as the mapping has not been collected by the
+    // garbage collector. Deletion is retried after a garbage
+    // collection. If this fails too, the file is renamed (which is
+    // possible there), because its name may be used again, and deleted
+    // at the end of the program.
+    private void delete() throws IOException
+    {
+        if (map==null)
+        {
+            Files.delete(filename);
+            return;
+        }
+
+        in = map = null;
+        if (tryDelete()) return;
+        Tools.gc();
+        if (tryDelete()) return;
+
+        Path p = filename.resolveSibling(filename.getFileName()+"_deleted_"+(++deleted));
+        try {
+            Files.move(filename,p);
+        } catch (IOException e) {
+            p = filename;
+        }
+        p.toFile().deleteOnExit();
+    }
+
+    private boolean tryDelete()
+    {
+        try {
+            Files.delete(filename);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
     public void close() throws IOException
     {
         in.close();
@@ -77,8 +127,33 @@ public class PositionInputStream extends InputStream
         return in.read(b,off,len);
     }
 
+    public long skip(long n) throws IOException
+    {
+        return in.skip(n);
+    }
+
+    public boolean isFromDisk()
+    {
+        return fromDisk;
+    }
+
+    // Copies the complete file to target, without passing the data
+    // through the heap.
+    public void copyTo(FileChannel target) throws IOException
+    {
+        try (FileChannel fc = FileChannel.open(filename,StandardOpenOption.READ))
+        {
+            long size = fc.size();
+            long pos = 0;
+            while (pos<size)
+                pos += fc.transferTo(pos,size-pos,target);
+        }
+    }
+
     public long getPosition() throws IOException
     {
+        if (map!=null)
+            return map.getPosition();
         if (fromDisk)
             return fc.position();
         return balis.getPosition();
@@ -86,7 +161,9 @@ public class PositionInputStream extends InputStream
 
     public void setPosition(long pos) throws IOException
     {
-        if (fromDisk)
+        if (map!=null)
+            map.setPosition(pos);
+        else if (fromDisk)
         {
             fc.position(pos);
             in = new BufferedInputStream(fis);
@@ -4,24 +4,37 @@ import java.util.List;
 import java.util.ArrayList;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.nio.file.Path;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 
 public class PositionOutputStream extends OutputStream
 {
     private static final int COPY_BUFFER_SIZE = 1_000_000;
+    private static final int MAX_PATCH = 1<<16;
 
     Path filename;
     boolean toDisk;
 
     private FileChannel fc;
-    private BufferedOutputStream bos;
+    private OutputStream bos;
     private ByteArrayListOutputStream balos;
 
+    // For streams on disk, the position is counted, so asking for it
+    // does not need to wait until everything is written. Writes before
+    // the end of the file (like filling in a size, that was unknown
+    // when writing started) are collected in patch and written, when
+    // the position is changed again.
+    private long position;
+    private long end;
+    private ByteArrayOutputStream patch;
+    private long patch_pos;
+
     static List<PositionOutputStream> pos = new ArrayList<>();
 
     public PositionOutputStream(Path filename, boolean toDisk) throws IOException
@@ -36,7 +49,7 @@ public class PositionOutputStream extends OutputStream
         {
             FileOutputStream fos = new FileOutputStream(filename.toString());
             fc = fos.getChannel();
-            bos = new BufferedOutputStream(fos);
+            bos = new AsyncOutputStream(fos);
         }
         else
             balos = new ByteArrayListOutputStream();
@@ -63,11 +76,18 @@ public class PositionOutputStream extends OutputStream
 
     public void write(int b) throws IOException
     {
-        if (!toDisk && balos.getAvailableMemory()<1)
-            freeSomeMemory();
+        while (!toDisk && balos.getAvailableMemory()<1)
+            if (!freeSomeMemory())
+                break;
 
         if (toDisk)
-            bos.write(b);
+        {
+            if (patch!=null)
+                patch.write(b);
+            else
+                bos.write(b);
+            moved(1);
+        }
         else
             balos.write(b);
     }
@@ -79,7 +99,13 @@ public class PositionOutputStream extends OutputStream
                 break;
 
         if (toDisk)
-            bos.write(b,off,len);
+        {
+            if (patch!=null)
+                patch.write(b,off,len);
+            else
+                bos.write(b,off,len);
+            moved(len);
+        }
         else
             balos.write(b,off,len);
     }
@@ -87,7 +113,10 @@ public class PositionOutputStream extends OutputStream
     public void close() throws IOException
     {
         if (toDisk)
+        {
+            endPatch();
             bos.close();
+        }
         else
             balos.close();
         pos.remove(this);
@@ -96,10 +125,7 @@ public class PositionOutputStream extends OutputStream
     public long getPosition() throws IOException
     {
         if (toDisk)
-        {
-            bos.flush();
-            return fc.position();
-        }
+            return position;
         else
             return balos.getPosition();
     }
@@ -108,8 +134,13 @@ public class PositionOutputStream extends OutputStream
     {
         if (toDisk)
         {
-            bos.flush();
-            fc.position(pos);
+            endPatch();
+            position = pos;
+            if (pos!=end)
+            {
+                patch = new ByteArrayOutputStream();
+                patch_pos = pos;
+            }
         }
         else
             balos.setPosition(pos);
@@ -134,6 +165,21 @@ public class PositionOutputStream extends OutputStream
         }
     }
 
+    // Appends the complete content of in. This is done by the
+    // operating system, if both streams are on disk. Otherwise false
+    // is returned and the caller has to copy the data.
+    public boolean transferFrom(PositionInputStream in) throws IOException
+    {
+        if (!toDisk || !in.isFromDisk()) return false;
+
+        endPatch();
+        bos.flush();
+        fc.position(position);
+        in.copyTo(fc);
+        position = end = fc.position();
+        return true;
+    }
+
     public long fileSize() throws IOException
     {
         return toDisk?Files.size(filename):balos.getSize();
@@ -151,31 +197,34 @@ public class PositionOutputStream extends OutputStream
         filename = neu;
     }
 
-    private static boolean freeSomeMemory() throws IOException
+    // Moves an in-memory stream to disk. Streams, that did not grow
+    // for the longest time, are moved first, because they are probably
+    // not written or read soon. Streams much smaller than the largest
+    // one are skipped, because moving them frees hardly any memory.
+    // The stream being written is moved only, if no other stream
+    // qualifies. Closed streams are not moved at all: They are read
+    // next or released soon.
+    private boolean freeSomeMemory() throws IOException
     {
-        int best = -1;
-        long bestlength = -1;
+        long largest = 0;
+        for (PositionOutputStream p:pos)
+            if (!p.toDisk)
+                largest = Math.max(largest,p.fileSize());
 
-        for (int i=0;i<pos.size();i++)
+        PositionOutputStream best = null;
+        for (PositionOutputStream p:pos)
         {
-            PositionOutputStream p = pos.get(i);
-            if (p.toDisk) continue;
+            if (p.toDisk || p.fileSize()<largest/4) continue;
+            if (p!=this && p.fileSize()==0) continue;
 
-            long len = p.fileSize();
-            if (len>bestlength)
-            {
-                bestlength = len;
-                best = i;
-            }
+            if (best==null || best==this || (p!=this && p.balos.getLastUse()<best.balos.getLastUse()))
+                best = p;
         }
 
-        if (best>=0)
-        {
-            pos.get(best).switchToDisk();
-            Tools.gc();
-        }
+        if (best==null) return false;
 
-        return best>=0;
+        best.switchToDisk();
+        return true;
     }
 
     private void switchToDisk() throws IOException
@@ -185,14 +234,58 @@ public class PositionOutputStream extends OutputStream
         if (Oma.verbose>=4)
             System.err.println("        Using temporary file '"+filename+"'.");
 
+        // There may be many of these streams (e.g. one per chunk) and
+        // memory is short already, so they are not written in the
+        // background.
         FileOutputStream fos = new FileOutputStream(filename.toString());
         fc = fos.getChannel();
         bos = new BufferedOutputStream(fos);
 
         balos.writeTo(bos);
+        position = end = balos.getSize();
+        long p = balos.getPosition();
         balos.release();
         balos = null;
 
         toDisk = true;
+        setPosition(p);
+    }
+
+    //////////////////////////////////////////////////////////////////
+
+    // Large amounts of data written before the end are not kept in
+    // memory: Everything is written and writing continues directly in
+    // the file at the current position.
+    private void moved(int len) throws IOException
+    {
+        position += len;
+        if (patch==null)
+            end = position;
+        else if (patch.size()>=MAX_PATCH)
+        {
+            endPatch();
+            bos.flush();
+            fc.position(position);
+            end = position;
+        }
+    }
+
+    // Writes the patch behind all data written before.
+    private void endPatch() throws IOException
+    {
+        if (patch==null) return;
+
+        byte[] b = patch.toByteArray();
+        patch = null;
+
+        if (bos instanceof AsyncOutputStream)
+            ((AsyncOutputStream)bos).writeAt(fc,b,patch_pos);
+        else
+        {
+            bos.flush();
+            ByteBuffer bb = ByteBuffer.wrap(b);
+            while (bb.hasRemaining())
+                fc.write(bb,patch_pos+bb.position());
+        }
     }
 }
@@ -0,0 +1,94 @@
+package de.kumakyoo.oma;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// The members of relation i are saved in type[members[i]] to
+// type[members[i+1]-1] (and ref and role accordingly). Types are
+// saved as 'n', 'w' or 'r', roles are indices into the string table.
+public class RelationBatch extends ElementBatch
+{
+    private static final String[] TYPES = {"node","way","relation"};
+
+    int[] members;
+    byte[] type;
+    long[] ref;
+    int[] role;
+
+    public RelationBatch(int capacity)
+    {
+        this(capacity,null);
+    }
+
+    public RelationBatch(int capacity, String[] strings)
+    {
+        super(capacity,strings);
+        members = new int[capacity+1];
+        type = new byte[0];
+        ref = new long[0];
+        role = new int[0];
+    }
+
+    public void clear()
+    {
+        super.clear();
+        members[0] = 0;
+    }
+
+    public int add(long id, int version, long timestamp, long changeset, int uid, int user)
+    {
+        int i = super.add(id,version,timestamp,changeset,uid,user);
+        members[i+1] = members[i];
+        return i;
+    }
+
+    public void addMember(byte type, long ref, int role)
+    {
+        int c = members[size];
+        if (c==this.type.length)
+        {
+            int capacity = 2*c+16;
+            this.type = Arrays.copyOf(this.type,capacity);
+            this.ref = Arrays.copyOf(this.ref,capacity);
+            this.role = Arrays.copyOf(this.role,capacity);
+        }
+        this.type[c] = type;
+        this.ref[c] = ref;
+        this.role[c] = role;
+        members[size] = c+1;
+    }
+
+    public void addMember(byte type, long ref, String role)
+    {
+        addMember(type,ref,addString(role));
+    }
+
+    public void add(OSMRelation r)
+    {
+        add(r.id,r.version,r.timestamp,r.changeset,r.uid,r.user);
+        for (OSMMember m:r.members)
+            addMember((byte)m.type.charAt(0),m.ref,m.role);
+        for (var tag:r.tags.entrySet())
+            addTag(tag.getKey(),tag.getValue());
+    }
+
+    public String role(int j)
+    {
+        return strings[role[j]];
+    }
+
+    public OSMRelation get(int i)
+    {
+        List<OSMMember> l = new ArrayList<>(members[i+1]-members[i]);
+        for (int j=members[i];j<members[i+1];j++)
+            l.add(new OSMMember(TYPES[type[j]=='n'?0:(type[j]=='w'?1:2)],ref[j],role(j)));
+        return new OSMRelation(id[i],version[i],timestamp[i],changeset[i],uid[i],user(i),l,tagMap(i));
+    }
+
+    protected void grow(int capacity)
+    {
+        super.grow(capacity);
+        members = Arrays.copyOf(members,capacity+1);
+    }
+}
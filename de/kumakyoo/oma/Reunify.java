@@ -3,13 +3,18 @@ package de.kumakyoo.oma;
 import java.io.IOException;
 import java.io.EOFException;
 import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.ByteArrayInputStream;
 import java.nio.file.Path;
 import java.nio.file.Files;
-import java.util.List;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ArrayDeque;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
 
 public class Reunify
 {
@@ -21,6 +26,14 @@ public class Reunify
     // database would have to increase its size a billion times.
     public static long ID_MARKER = 0x7f00000000000000L;
 
+    // Size of the segments of records, that are resolved concurrently
+    // and the number of segments per thread, that may be pending.
+    private static final int SEGMENT_SIZE = 1<<20;
+    private static final int SEGMENTS_PER_THREAD = 2;
+
+    // Largest size of arrays supported by the JVM.
+    private static final int MAX_ARRAY = Integer.MAX_VALUE-10;
+
     private Path infile;
     private Path outfile;
 
@@ -42,16 +55,19 @@ public class Reunify
     private boolean all_nodes_read;
     private boolean all_ways_read;
 
-    private long[] ids;
+    private NodeStore node_store;
 
-    private int[] nodes_lon;
-    private int[] nodes_lat;
-    private int nodes_c;
+    private boolean sort_nodes;
+    private PairSorter references;
+    private PairSorter locations;
+    private boolean has_location;
+    private long ref_seq;
 
-    private byte[][] ways_data;
-    private int ways_c;
+    private WayStore ways;
+    private IdIndex referenced_ways;
+    private int referenced_ways_c;
 
-    private Map<Long,List<Member>> members;
+    private MemberIndex members;
 
     private long missing_nodes;
     private long missing_ways;
@@ -75,9 +91,11 @@ public class Reunify
         updateNodes();
         releaseMemory();
 
+        readReferencedWays();
         allocateMemory(false);
         updateWays();
         releaseMemory();
+        referenced_ways = null;
 
         out = OmaOutputStream.init(outfile,true);
         if (bounding_box!=null)
@@ -95,6 +113,23 @@ public class Reunify
 
     private void allocateMemory(boolean nodes) throws IOException
     {
+        if (nodes && "flat".equals(Oma.node_store))
+        {
+            if (Oma.verbose>=3)
+                System.out.println("      Using flat node store.");
+            node_store = new FlatNodeStore(Tools.tmpFile("nodes"));
+            return;
+        }
+
+        if (nodes && "sort".equals(Oma.node_store))
+        {
+            if (Oma.verbose>=3)
+                System.out.println("      Resolving nodes by sorting.");
+            sort_nodes = true;
+            node_store = new ArrayNodeStore(0);
+            return;
+        }
+
         long available = Tools.memavail();
         long useable = (available-Oma.memlimit)/10*9;
         if (useable<100000) useable = available/5*4;
@@ -105,7 +140,8 @@ public class Reunify
             System.out.println("      Useable: "+Tools.humanReadable(useable));
         }
 
-        long wish = useable/(nodes?16:90)+1;
+        boolean compressed = nodes && "compressed".equals(Oma.node_store);
+        long wish = useable/(compressed?8:nodes?16:80)+1;
 
         if (nodes)
         {
@@ -132,6 +168,8 @@ public class Reunify
 
             wish = Math.min(max_nodes,wish);
         }
+        else
+            wish = Math.min(referenced_ways_c+1,wish);
 
         int max = wish>Integer.MAX_VALUE-10?Integer.MAX_VALUE-10:(int)wish;
 
@@ -141,15 +179,12 @@ public class Reunify
                 if (Oma.verbose>=3)
                     System.out.println("      Trying to allocate "+max+" "+(nodes?"nodes":"ways")+"...");
 
-                ids = new long[max];
-
-                if (nodes)
-                {
-                    nodes_lon = new int[max];
-                    nodes_lat = new int[max];
-                }
+                if (compressed)
+                    node_store = new CompressedNodeStore(max);
+                else if (nodes)
+                    node_store = new ArrayNodeStore(max);
                 else
-                    ways_data = new byte[max][];
+                    ways = new WayStore(max);
 
                 break;
             }
@@ -172,11 +207,12 @@ public class Reunify
             System.out.println("      Allocation was successful.");
     }
 
-    private void releaseMemory()
+    private void releaseMemory() throws IOException
     {
-        ids = null;
-        nodes_lon = nodes_lat = null;
-        ways_data = null;
+        if (node_store!=null)
+            node_store.close();
+        node_store = null;
+        ways = null;
         Tools.gc();
     }
 
@@ -202,15 +238,15 @@ public class Reunify
 
         while (true)
         {
-            Element el = r.next();
+            Element el = r.nextBatch();
             if (el==null) break;
 
-            if (el instanceof OSMNode)
-                processNode((OSMNode)el);
-            else if (el instanceof OSMWay)
-                processWay((OSMWay)el);
-            else if (el instanceof OSMRelation)
-                processRelation((OSMRelation)el);
+            if (el instanceof NodeBatch)
+                processNodes((NodeBatch)el);
+            else if (el instanceof WayBatch)
+                processWays((WayBatch)el);
+            else if (el instanceof RelationBatch)
+                processRelations((RelationBatch)el);
         }
 
         if (!all_nodes_read) endNodes();
@@ -232,22 +268,23 @@ public class Reunify
         }
     }
 
-    private void processNode(OSMNode n) throws IOException
+    private void processNodes(NodeBatch b) throws IOException
+    {
+        for (int i=0;i<b.size;i++)
+            processNode(b,i);
+    }
+
+    private void processNode(NodeBatch b, int i) throws IOException
     {
         nc++;
         if (!Oma.silent && nc%100000==0)
             System.err.print("Step 1: reading nodes: "+Tools.humanReadable(nc)+"        \r");
 
         if (bounding_box==null) bounding_box = Bounds.getNoBounds();
-        bounding_box.addNode(n);
+        bounding_box.addNode(b.lon[i],b.lat[i]);
 
-        if (nodes_c<ids.length)
-        {
-            ids[nodes_c] = n.id;
-            nodes_lon[nodes_c] = n.lon;
-            nodes_lat[nodes_c] = n.lat;
-            nodes_c++;
-        }
+        if (!node_store.isFull())
+            node_store.add(b.id[i],b.lon[i],b.lat[i]);
         else
         {
             if (nodes_start==-1)
@@ -255,15 +292,21 @@ public class Reunify
             node_count++;
         }
 
-        writeMeta(nout,n);
+        writeMeta(nout,b,i);
+
+        nout.writeInt(b.lon[i]);
+        nout.writeInt(b.lat[i]);
 
-        nout.writeInt(n.lon);
-        nout.writeInt(n.lat);
+        writeTags(nout,b,i);
+    }
 
-        writeTags(nout,n);
+    private void processWays(WayBatch b) throws IOException
+    {
+        for (int i=0;i<b.size;i++)
+            processWay(b,i);
     }
 
-    private void processWay(OSMWay w) throws IOException
+    private void processWay(WayBatch b, int i) throws IOException
     {
         wc++;
         if (!Oma.silent && wc%10000==0)
@@ -271,16 +314,22 @@ public class Reunify
 
         if (!all_nodes_read) endNodes();
 
-        writeMeta(wout,w);
+        writeMeta(wout,b,i);
+
+        wout.writeSmallInt(b.refCount(i));
+        for (int j=b.nds[i];j<b.nds[i+1];j++)
+            writeNodeLocation(wout,b.refs[j]);
 
-        wout.writeSmallInt(w.nds.size());
-        for (int i=0;i<w.nds.size();i++)
-            writeNodeLocation(wout,w.nds.get(i));
+        writeTags(wout,b,i);
+    }
 
-        writeTags(wout,w);
+    private void processRelations(RelationBatch b) throws IOException
+    {
+        for (int i=0;i<b.size;i++)
+            processRelation(b,i);
     }
 
-    private void processRelation(OSMRelation r) throws IOException
+    private void processRelation(RelationBatch b, int i) throws IOException
     {
         rc++;
         if (!Oma.silent && rc%1000==0)
@@ -289,109 +338,152 @@ public class Reunify
         if (!all_nodes_read) endNodes();
         if (!all_ways_read) endWays();
 
-        String type = r.tags.get("type");
+        String type = b.getTag(i,"type");
 
-        if ("multipolygon".equals(type) || "boundary".equals(type))
+        boolean area = "multipolygon".equals(type) || "boundary".equals(type);
+        boolean restriction = "restriction".equals(type) || "destination_sign".equals(type);
+
+        if (area)
         {
             rac++;
-            writeMeta(raout,r);
+            writeMeta(raout,b,i);
 
             int maz = 0;
-            for (OSMMember m:r.members)
-                if ("way".equals(m.type) && ("outer".equals(m.role) || "inner".equals(m.role)))
+            for (int j=b.members[i];j<b.members[i+1];j++)
+                if (isAreaMember(b,j))
                     maz++;
 
             raout.writeSmallInt(maz);
-            for (OSMMember m:r.members)
-                if ("way".equals(m.type) && ("outer".equals(m.role) || "inner".equals(m.role)))
+            for (int j=b.members[i];j<b.members[i+1];j++)
+                if (isAreaMember(b,j))
                 {
-                    raout.writeString(m.role);
+                    raout.writeString(b.role(j));
                     raout.writeByte('w');
-                    raout.writeLong(m.ref);
-                    m.ref = -1;
+                    raout.writeLong(b.ref[j]);
                     missing_ways++;
                 }
 
-            writeTags(raout,r);
+            writeTags(raout,b,i);
         }
 
-        if ("restriction".equals(type) || "destination_sign".equals(type))
+        if (restriction)
         {
             rwc++;
-            writeMeta(rwout,r);
+            writeMeta(rwout,b,i);
 
             int maz = 0;
-            for (OSMMember m:r.members)
-                if ("way".equals(m.type) && ("from".equals(m.role) || "to".equals(m.role) || "via".equals(m.role) || "intersection".equals(m.role)))
-                    maz++;
-            for (OSMMember m:r.members)
-                if ("node".equals(m.type) && ("via".equals(m.role) || "intersection".equals(m.role)))
+            for (int j=b.members[i];j<b.members[i+1];j++)
+                if (isRestrictionWay(b,j) || isRestrictionNode(b,j))
                     maz++;
 
             rwout.writeSmallInt(maz);
-            for (OSMMember m:r.members)
-                if ("way".equals(m.type) && ("from".equals(m.role) || "to".equals(m.role) || "via".equals(m.role) || "intersection".equals(m.role)))
+            for (int j=b.members[i];j<b.members[i+1];j++)
+                if (isRestrictionWay(b,j))
                 {
-                    rwout.writeString(m.role);
+                    rwout.writeString(b.role(j));
                     rwout.writeByte('w');
-                    rwout.writeLong(m.ref);
-                    m.ref = -1;
+                    rwout.writeLong(b.ref[j]);
                     missing_ways++;
                 }
-            for (OSMMember m:r.members)
-                if ("node".equals(m.type) && ("via".equals(m.role) || "intersection".equals(m.role)))
+            for (int j=b.members[i];j<b.members[i+1];j++)
+                if (isRestrictionNode(b,j))
                 {
-                    rwout.writeString(m.role);
+                    rwout.writeString(b.role(j));
                     rwout.writeByte('n');
-                    writeNodeLocation(rwout,m.ref);
-                    m.ref = -1;
+                    writeNodeLocation(rwout,b.ref[j]);
                 }
 
-            writeTags(rwout,r);
+            writeTags(rwout,b,i);
         }
 
         int raz = 0;
-        for (OSMMember m:r.members)
-            if (m.ref!=-1)
+        for (int j=b.members[i];j<b.members[i+1];j++)
+            if (isCollectionMember(b,j,area,restriction))
                 raz++;
 
         if (raz==0) return;
 
         rcc++;
-        writeMeta(rcout,r);
+        writeMeta(rcout,b,i);
 
         rcout.writeSmallInt(raz);
-        for (OSMMember m:r.members)
-            if (m.ref!=-1)
+        for (int j=b.members[i];j<b.members[i+1];j++)
+            if (isCollectionMember(b,j,area,restriction))
             {
-                rcout.writeString(m.role);
-                rcout.writeByte(m.type.charAt(0));
-                rcout.writeLong(m.ref);
+                rcout.writeString(b.role(j));
+                rcout.writeByte(b.type[j]);
+                rcout.writeLong(b.ref[j]);
             }
 
-        writeTags(rcout,r);
+        writeTags(rcout,b,i);
+    }
+
+    private boolean isAreaMember(RelationBatch b, int j)
+    {
+        String role = b.role(j);
+        return b.type[j]=='w' && ("outer".equals(role) || "inner".equals(role));
+    }
+
+    private boolean isRestrictionWay(RelationBatch b, int j)
+    {
+        String role = b.role(j);
+        return b.type[j]=='w' && ("from".equals(role) || "to".equals(role) || "via".equals(role) || "intersection".equals(role));
+    }
+
+    private boolean isRestrictionNode(RelationBatch b, int j)
+    {
+        String role = b.role(j);
+        return b.type[j]=='n' && ("via".equals(role) || "intersection".equals(role));
     }
 
-    private void writeMeta(OmaOutputStream out, ElementWithID e) throws IOException
+    // Members, that are not used for areas or restrictions, are kept
+    // for the collection.
+    private boolean isCollectionMember(RelationBatch b, int j, boolean area, boolean restriction)
     {
-        out.writeLong(e.id);
+        if (area && isAreaMember(b,j)) return false;
+        if (restriction && (isRestrictionWay(b,j) || isRestrictionNode(b,j))) return false;
+        return true;
+    }
+
+    private void writeMeta(OmaOutputStream out, ElementBatch b, int i) throws IOException
+    {
+        out.writeLong(b.id[i]);
         if (Oma.preserve_version)
-            out.writeSmallInt(e.version);
+            out.writeSmallInt(b.version[i]);
         if (Oma.preserve_timestamp)
-            out.writeLong(e.timestamp);
+            out.writeLong(b.timestamp[i]);
         if (Oma.preserve_changeset)
-            out.writeLong(e.changeset);
+            out.writeLong(b.changeset[i]);
         if (Oma.preserve_user)
         {
-            out.writeInt(e.uid);
-            out.writeString(e.user);
+            out.writeInt(b.uid[i]);
+            out.writeString(b.user(i));
         }
     }
 
-    private void writeTags(OmaOutputStream out, ElementWithID e) throws IOException
+    // Tags are collected in a map, like the element based API does, so
+    // duplicate keys are dropped and the order of the tags stays the
+    // same. Most elements have no tags at all.
+    private void writeTags(OmaOutputStream out, ElementBatch b, int i) throws IOException
     {
-        out.writeSmallInt(e.tags.size());
-        for (var tag:e.tags.entrySet())
+        int taz = b.tagCount(i);
+        if (taz==0)
+        {
+            out.writeSmallInt(0);
+            return;
+        }
+
+        Map<String, String> tags = new HashMap<>();
+        for (int j=0;j<taz;j++)
+            tags.put(b.key(i,j),b.value(i,j));
+
+        int count = tags.size();
+        tags.keySet().removeIf(key -> ElementWithID.isDiscardable(key));
+        if (count>tags.size())
+            ElementWithID.addDiscardedTags(count-tags.size());
+
+        out.writeSmallInt(tags.size());
+        for (var tag:tags.entrySet())
         {
             out.writeString(tag.getKey());
             out.writeString(tag.getValue());
@@ -429,15 +521,15 @@ public class Reunify
         }
     }
 
-    // Searching node, using binary search. If node is not found,
+    // Searching node in the node store. If node is not found,
     // writing marked id instead.
     private void writeNodeLocation(OmaOutputStream s, long id) throws IOException
     {
-        int pos = Arrays.binarySearch(ids,0,nodes_c,id);
-        if (pos>=0)
+        long loc = node_store.get(id);
+        if (loc!=NodeStore.NOT_FOUND)
         {
-            s.writeInt(nodes_lon[pos]);
-            s.writeInt(nodes_lat[pos]);
+            s.writeInt(NodeStore.lon(loc));
+            s.writeInt(NodeStore.lat(loc));
         }
         else
         {
@@ -458,7 +550,10 @@ public class Reunify
             System.out.println("      Nodes missing: "+Tools.humanReadable(missing_nodes)+".");
 
         if (missing_nodes>0)
-            addMissingNodes();
+            if (sort_nodes)
+                joinMissingNodes();
+            else
+                addMissingNodes();
 
         if (Oma.verbose>=2)
             System.out.println("    All nodes updated.");
@@ -466,8 +561,10 @@ public class Reunify
 
     private void addMissingNodes() throws IOException
     {
-        long passes = node_count/ids.length;
-        if (node_count%ids.length>0) passes++;
+        // The capacity of a compressed node store depends on the data,
+        // the number of passes is only an estimate in this case.
+        long passes = node_count/node_store.capacity();
+        if (node_count%node_store.capacity()>0) passes++;
 
         if (Oma.verbose>=3)
         {
@@ -477,18 +574,21 @@ public class Reunify
 
         OmaInputStream nis = OmaInputStream.init(nout);
         nis.setPosition(nodes_start);
-        for (int pass=0;pass<passes;pass++)
+        long remaining = node_count;
+        for (int pass=0;remaining>0;pass++)
         {
             if (!Oma.silent)
                 System.err.printf("Step 1: reading new nodes                                  \r");
 
-            readTmpNodes(nis);
+            readTmpNodes(nis,remaining);
+            if (node_store.size()==0) break;
+            remaining -= node_store.size();
 
             if (!Oma.silent)
                 System.err.printf("                                                           \r");
 
             if (Oma.verbose>=3)
-                System.out.println("      Pass "+(pass+1)+": "+nodes_c+" nodes read.");
+                System.out.println("      Pass "+(pass+1)+": "+node_store.size()+" nodes read.");
 
             updateNodesOfWays();
             updateNodesOfRelationWays();
@@ -497,13 +597,14 @@ public class Reunify
         nis.close();
     }
 
-    private void readTmpNodes(OmaInputStream nis) throws IOException
+    private void readTmpNodes(OmaInputStream nis, long remaining) throws IOException
     {
         try
         {
-            for (nodes_c=0;nodes_c<ids.length;nodes_c++)
+            node_store.clear();
+            while (node_store.size()<remaining && !node_store.isFull())
             {
-                ids[nodes_c] = nis.readLong();
+                long id = nis.readLong();
                 if (Oma.preserve_version)
                     nis.readSmallInt();
                 if (Oma.preserve_timestamp)
@@ -516,8 +617,7 @@ public class Reunify
                     nis.readString();
                 }
 
-                nodes_lon[nodes_c] = nis.readInt();
-                nodes_lat[nodes_c] = nis.readInt();
+                node_store.add(id,nis.readInt(),nis.readInt());
 
                 int taz = nis.readSmallInt();
                 for (int i=0;i<2*taz;i++)
@@ -530,6 +630,110 @@ public class Reunify
         }
     }
 
+    // Instead of keeping nodes in memory, all references to missing
+    // nodes are numbered and sorted by node id. These are joined with
+    // the nodes, sorted by id too. The locations found are sorted
+    // back by number and replaced in a last pass over ways and
+    // relations. The number of passes does not depend on the
+    // available memory and the input file need not be sorted.
+    private void joinMissingNodes() throws IOException
+    {
+        int capacity = sorterCapacity();
+
+        if (Oma.verbose>=3)
+            System.out.println("      Sorting "+Tools.humanReadable(node_count)+" nodes and "+Tools.humanReadable(missing_nodes)+" references in runs of "+Tools.humanReadable(capacity)+".");
+
+        if (!Oma.silent)
+            System.err.printf("Step 1: collecting references to missing nodes             \r");
+
+        references = new PairSorter("refs",capacity);
+        ref_seq = 0;
+        OmaOutputStream discard = new OmaOutputStream(OutputStream.nullOutputStream());
+        collectMissingNodes(wout,wc,discard,false);
+        collectMissingNodes(rwout,rwc,discard,true);
+        collectMissingNodes(raout,rac,discard,true);
+        references.finish();
+
+        if (!Oma.silent)
+            System.err.printf("Step 1: sorting nodes                                      \r");
+
+        PairSorter nodes = new PairSorter("nodes",capacity);
+        OmaInputStream nis = OmaInputStream.init(nout);
+        nis.setPosition(nodes_start);
+        for (long i=0;i<node_count;i++)
+        {
+            long id = nis.readLong();
+            if (Oma.preserve_version)
+                nis.readSmallInt();
+            if (Oma.preserve_timestamp)
+                nis.readLong();
+            if (Oma.preserve_changeset)
+                nis.readLong();
+            if (Oma.preserve_user)
+            {
+                nis.readInt();
+                nis.readString();
+            }
+
+            nodes.add(id,NodeStore.pack(nis.readInt(),nis.readInt()));
+
+            int taz = nis.readSmallInt();
+            for (int j=0;j<2*taz;j++)
+                nis.readString();
+        }
+        nis.close();
+        nodes.finish();
+
+        if (!Oma.silent)
+            System.err.printf("Step 1: joining nodes                                      \r");
+
+        locations = new PairSorter("locations",capacity);
+        boolean more = nodes.next();
+        while (references.next())
+        {
+            while (more && nodes.key()<references.key())
+                more = nodes.next();
+            if (more && nodes.key()==references.key())
+                locations.add(references.value(),nodes.value());
+        }
+        references.release();
+        references = null;
+        nodes.release();
+        locations.finish();
+
+        if (!Oma.silent)
+            System.err.printf("                                                           \r");
+
+        ref_seq = 0;
+        has_location = locations.next();
+        updateNodesOfWays();
+        updateNodesOfRelationWays();
+        updateNodesOfRelationAreas();
+        locations.release();
+        locations = null;
+    }
+
+    private int sorterCapacity()
+    {
+        long capacity = (Tools.memavail()-Oma.memlimit)/3/16;
+        return (int)Math.max(1<<16,Math.min(Integer.MAX_VALUE-10,capacity));
+    }
+
+    private void collectMissingNodes(OmaOutputStream s, long count, OmaOutputStream discard, boolean relations) throws IOException
+    {
+        OmaInputStream in = OmaInputStream.init(s);
+        for (long c=0;c<count;c++)
+        {
+            copyMetaData(discard,in);
+            if (relations)
+                copyMemberReplacingIDs(in,discard,true);
+            else
+                copyArrayOfNodesReplacingIDs(in,discard,true);
+            copyTags(discard,in);
+        }
+        in.close();
+    }
+
     private void updateNodesOfWays() throws IOException
     {
         if (!Oma.silent)
@@ -540,15 +744,11 @@ public class Reunify
         OmaInputStream in = OmaInputStream.init(wout);
         wout = OmaOutputStream.init(wtmp);
 
-        for (long c=0;c<wc;c++)
-        {
-            if (!Oma.silent && c%100000==0)
-                System.err.printf("Step 1: updating nodes of ways: %.1f%%        \r",100.0/wc*c);
-
-            copyMetaData(wout, in);
-            copyArrayOfNodesReplacingIDs(in,wout);
-            copyTags(wout,in);
-        }
+        copyRecords(in,wout,wc,"updating nodes of ways",(i,o,resolve) -> {
+                copyMetaData(o,i);
+                copyArrayOfNodesReplacingIDs(i,o,resolve);
+                copyTags(o,i);
+            });
         if (!Oma.silent)
             System.err.print("Step 1:                                                                     \r");
 
@@ -566,15 +766,11 @@ public class Reunify
         OmaInputStream in = OmaInputStream.init(rwout);
         rwout = OmaOutputStream.init(rwtmp);
 
-        for (long c=0;c<rwc;c++)
-        {
-            if (!Oma.silent && c%100000==0)
-                System.err.printf("Step 1: updating nodes of ways from relations: %.1f%%        \r",100.0/rwc*c);
-
-            copyMetaData(rwout, in);
-            copyMemberReplacingIDs(in, rwout);
-            copyTags(rwout,in);
-        }
+        copyRecords(in,rwout,rwc,"updating nodes of ways from relations",(i,o,resolve) -> {
+                copyMetaData(o,i);
+                copyMemberReplacingIDs(i,o,resolve);
+                copyTags(o,i);
+            });
         if (!Oma.silent)
             System.err.print("Step 1:                                                                     \r");
 
@@ -592,15 +788,11 @@ public class Reunify
         OmaInputStream in = OmaInputStream.init(raout);
         raout = OmaOutputStream.init(ratmp);
 
-        for (long c=0;c<rac;c++)
-        {
-            if (!Oma.silent && c%100000==0)
-                System.err.printf("Step 1: updating nodes of areas from relations: %.1f%%        \r",100.0/rac*c);
-
-            copyMetaData(raout, in);
-            copyMemberReplacingIDs(in, raout);
-            copyTags(raout,in);
-        }
+        copyRecords(in,raout,rac,"updating nodes of areas from relations",(i,o,resolve) -> {
+                copyMetaData(o,i);
+                copyMemberReplacingIDs(i,o,resolve);
+                copyTags(o,i);
+            });
         if (!Oma.silent)
             System.err.print("Step 1:                                                                     \r");
 
@@ -608,15 +800,99 @@ public class Reunify
         raout.close();
     }
 
-    private void copyArrayOfNodesReplacingIDs(OmaInputStream in, OmaOutputStream out) throws IOException
+    private interface RecordCopier
+    {
+        void copy(OmaInputStream in, OmaOutputStream out, boolean resolve) throws IOException;
+    }
+
+    // Copies count records from in to out, resolving the nodes. With
+    // more than one thread, the records are copied unchanged into
+    // segments first. The segments are resolved by a pool of workers,
+    // sharing the node store, and their results are written in order.
+    // When sorting, the references have to be resolved in order, so
+    // this is done sequentially.
+    private void copyRecords(OmaInputStream in, OmaOutputStream out, long count, String what, RecordCopier copier) throws IOException
+    {
+        if (Oma.threads==1 || sort_nodes)
+        {
+            for (long c=0;c<count;c++)
+            {
+                if (!Oma.silent && c%100000==0)
+                    System.err.printf("Step 1: "+what+": %.1f%%        \r",100.0/count*c);
+
+                copier.copy(in,out,true);
+            }
+            return;
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(Oma.threads);
+        ArrayDeque<Future<byte[]>> results = new ArrayDeque<>();
+        try
+        {
+            long c = 0;
+            while (c<count)
+            {
+                if (!Oma.silent)
+                    System.err.printf("Step 1: "+what+": %.1f%%        \r",100.0/count*c);
+
+                ByteArrayOutputStream segment = new ByteArrayOutputStream(SEGMENT_SIZE+SEGMENT_SIZE/8);
+                OmaOutputStream s = new OmaOutputStream(segment);
+                int records = 0;
+                while (c<count && segment.size()<SEGMENT_SIZE)
+                {
+                    copier.copy(in,s,false);
+                    records++;
+                    c++;
+                }
+
+                byte[] data = segment.toByteArray();
+                int n = records;
+                results.add(workers.submit(() -> {
+                    OmaInputStream i = new OmaInputStream(new ByteArrayInputStream(data));
+                    ByteArrayOutputStream result = new ByteArrayOutputStream(data.length);
+                    OmaOutputStream o = new OmaOutputStream(result);
+                    for (int j=0;j<n;j++)
+                        copier.copy(i,o,true);
+                    return result.toByteArray();
+                }));
+
+                while (results.size()>=SEGMENTS_PER_THREAD*Oma.threads)
+                    out.write(result(results.poll()));
+            }
+
+            while (!results.isEmpty())
+                out.write(result(results.poll()));
+        }
+        finally
+        {
+            workers.shutdownNow();
+        }
+    }
+
+    private static byte[] result(Future<byte[]> f) throws IOException
+    {
+        try {
+            return f.get();
+        } catch (InterruptedException e) { throw new IOException(e); }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error)e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private void copyArrayOfNodesReplacingIDs(OmaInputStream in, OmaOutputStream out, boolean resolve) throws IOException
     {
         int naz = in.readSmallInt();
         out.writeSmallInt(naz);
         for (int i=0;i<naz;i++)
-            copyReplacingNodeID(in,out);
+            copyReplacingNodeID(in,out,resolve);
     }
 
-    private void copyMemberReplacingIDs(OmaInputStream in, OmaOutputStream out) throws IOException
+    private void copyMemberReplacingIDs(OmaInputStream in, OmaOutputStream out, boolean resolve) throws IOException
     {
         int maz = in.readSmallInt();
         out.writeSmallInt(maz);
@@ -632,7 +908,7 @@ public class Reunify
                 break;
             case 'n':
                 out.writeByte('n');
-                copyReplacingNodeID(in,out);
+                copyReplacingNodeID(in,out,resolve);
                 break;
             default:
                 System.err.println("unknown type: "+(char)type);
@@ -641,22 +917,45 @@ public class Reunify
         }
     }
 
-    private void copyReplacingNodeID(OmaInputStream in, OmaOutputStream out) throws IOException
+    private void copyReplacingNodeID(OmaInputStream in, OmaOutputStream out, boolean resolve) throws IOException
     {
         long id = in.readLong();
-        if (id>=ID_MARKER)
+        if (resolve && id>=ID_MARKER)
         {
-            int pos = Arrays.binarySearch(ids,0,nodes_c,id-ID_MARKER);
-            if (pos>=0)
+            long loc = findNode(id-ID_MARKER);
+            if (loc!=NodeStore.NOT_FOUND)
             {
-                out.writeInt(nodes_lon[pos]);
-                out.writeInt(nodes_lat[pos]);
+                out.writeInt(NodeStore.lon(loc));
+                out.writeInt(NodeStore.lat(loc));
                 return;
             }
         }
         out.writeLong(id);
     }
 
+    // When sorting, references to missing nodes are numbered. First
+    // they are collected, later the locations found are read back in
+    // the same order.
+    private long findNode(long id) throws IOException
+    {
+        if (!sort_nodes)
+            return node_store.get(id);
+
+        long seq = ref_seq++;
+        if (references!=null)
+        {
+            references.add(id,seq);
+            return NodeStore.NOT_FOUND;
+        }
+
+        if (!has_location || locations.key()!=seq)
+            return NodeStore.NOT_FOUND;
+
+        long loc = locations.value();
+        has_location = locations.next();
+        return loc;
+    }
+
     //////////////////////////////////////////////////////////////////
 
     private void updateWays() throws IOException
@@ -689,7 +988,7 @@ public class Reunify
                 System.err.printf("                                                           \r");
 
             if (Oma.verbose>=3)
-                System.out.println("      Pass "+pass+": "+ways_c+" ways read.");
+                System.out.println("      Pass "+pass+": "+ways.size()+" ways read.");
 
             updateWaysOfRelationWays();
             updateWaysOfRelationAreas();
@@ -699,12 +998,80 @@ public class Reunify
         wis.close();
     }
 
+    // Collects the ids of all ways referenced by area and restriction
+    // relations. Only these ways have to be kept while updating the
+    // relations, which saves memory and passes.
+    private void readReferencedWays() throws IOException
+    {
+        if (missing_ways==0) return;
+
+        long[] refs = new long[(int)Math.min(MAX_ARRAY,missing_ways)];
+        int c = 0;
+
+        OmaOutputStream discard = new OmaOutputStream(OutputStream.nullOutputStream());
+        for (int f=0;f<2;f++)
+        {
+            OmaInputStream in = OmaInputStream.init(f==0?rwout:raout);
+            long count = f==0?rwc:rac;
+            for (long i=0;i<count;i++)
+            {
+                copyMetaData(discard,in);
+
+                int maz = in.readSmallInt();
+                for (int j=0;j<maz;j++)
+                {
+                    in.readString();
+                    byte type = in.readByte();
+                    long id = in.readLong();
+                    if (type!='w') continue;
+
+                    // Ways referenced several times are removed, before
+                    // the array is enlarged.
+                    if (c==refs.length)
+                    {
+                        c = sortUnique(refs,c);
+                        if (c==refs.length)
+                        {
+                            if (refs.length==MAX_ARRAY)
+                            {
+                                System.err.println("Too many different ways referenced by relations.");
+                                System.exit(-1);
+                            }
+                            refs = Arrays.copyOf(refs,(int)Math.min(MAX_ARRAY,2L*refs.length));
+                        }
+                    }
+                    refs[c++] = id;
+                }
+
+                copyTags(discard,in);
+            }
+            in.close();
+        }
+
+        int n = sortUnique(refs,c);
+
+        if (Oma.verbose>=3)
+            System.out.println("      "+Tools.humanReadable(n)+" different ways referenced by relations.");
+
+        referenced_ways = new IdIndex(refs,n);
+        referenced_ways_c = n;
+    }
+
+    // Sorts the first c ids and removes duplicates. Returns the number
+    // of ids left.
+    private static int sortUnique(long[] ids, int c)
+    {
+        Arrays.sort(ids,0,c);
+        int n = 0;
+        for (int i=0;i<c;i++)
+            if (n==0 || ids[n-1]!=ids[i])
+                ids[n++] = ids[i];
+        return n;
+    }
+
     private boolean readTmpWays(OmaInputStream wis) throws IOException
     {
-        ways_c = 0;
-        for (int i=0;i<ways_data.length;i++)
-            ways_data[i] = null;
-        Tools.gc();
+        ways.clear();
 
         try
         {
@@ -723,27 +1090,25 @@ public class Reunify
                     wis.readString();
                 }
 
-                int az = wis.readSmallInt();
-                ByteArrayOutputStream baos = new ByteArrayOutputStream(4+8*az);
-                new OmaOutputStream(baos).writeSmallInt(az);
-                byte[] b = new byte[8*az];
-                wis.readFully(b);
-                baos.write(b);
-
-                ids[ways_c] = id;
-                ways_data[ways_c] = baos.toByteArray();
-                ways_c++;
+                if (referenced_ways.find(id)>=0)
+                    ways.add(id,wis);
+                else
+                    wis.skipBytes(8*wis.readSmallInt());
 
-                az = wis.readSmallInt();
-                for (int i=0;i<2*az;i++)
+                int taz = wis.readSmallInt();
+                for (int i=0;i<2*taz;i++)
                     wis.readString();
 
-                if (ways_c==ids.length || Tools.memavail()<Oma.memlimit)
+                if (ways.isFull() || Tools.memavail()<Oma.memlimit)
+                {
+                    ways.finish();
                     return false;
+                }
             }
         }
         catch (EOFException e) {}
 
+        ways.finish();
         return true;
     }
 
@@ -809,11 +1174,11 @@ public class Reunify
             {
             case 'w':
                 long id = in.readLong();
-                int pos = Arrays.binarySearch(ids,0,ways_c,id);
+                int pos = ways.find(id);
                 if (pos>=0)
                 {
                     out.writeByte('W');
-                    out.write(ways_data[pos]);
+                    ways.write(out,pos);
                 }
                 else
                 {
@@ -871,22 +1236,24 @@ public class Reunify
         if (Oma.verbose>=2)
             System.out.println("  Adding members...");
 
-        readMembers('n');
+        readMembers();
         addNodes();
-        readMembers('w');
         addWays();
-        readMembers('r');
         addRelationWays();
         addRelationAreas();
         addCollections();
+        members.release();
+        members = null;
 
         if (Oma.verbose>=2)
             System.out.println("    All members added.");
     }
 
-    private void readMembers(char type) throws IOException
+    private void readMembers() throws IOException
     {
-        members = new HashMap<>();
+        // About 48 bytes are needed per membership, while sorting.
+        long capacity = (Tools.memavail()-Oma.memlimit)/2/48;
+        members = new MemberIndex((int)Math.max(1<<16,Math.min(Integer.MAX_VALUE-10,capacity)));
 
         OmaInputStream in = OmaInputStream.init(rcout);
 
@@ -912,14 +1279,7 @@ public class Reunify
                 byte mtype = in.readByte();
                 long id = in.readLong();
 
-                if (type==mtype)
-                {
-                    List<Member> m = members.get(id);
-                    if (m==null)
-                        m = new ArrayList<>();
-                    m.add(new Member(rid,role,i));
-                    members.put(id,m);
-                }
+                members.add((char)mtype,id,rid,role,i);
             }
 
             int taz = in.readSmallInt();
@@ -927,6 +1287,8 @@ public class Reunify
                 in.readString();
         }
         in.close();
+
+        members.finish();
     }
 
     private void addNodes() throws IOException
@@ -939,7 +1301,7 @@ public class Reunify
                 System.err.printf("Step 1: adding members: %.1f%% (nodes)       \r",100.0/(nc+wc+rwc+rac+rcc)*i);
 
             long id = in.readLong();
-            List<Member> mlist = members.get(id);
+            int mpos = members.find('n',id);
             int version = Oma.preserve_version?in.readSmallInt():0;
             long timestamp = Oma.preserve_timestamp?in.readLong():0;
             long changeset = Oma.preserve_changeset?in.readLong():0;
@@ -950,7 +1312,7 @@ public class Reunify
 
             int taz = in.readSmallInt();
 
-            if (taz==0 && mlist==null) continue;
+            if (taz==0 && mpos<0) continue;
 
             out.writeByte('N');
             if (Oma.preserve_id)
@@ -973,18 +1335,7 @@ public class Reunify
             for (int j=0;j<2*taz;j++)
                 out.writeString(in.readString());
 
-            if (mlist==null)
-                out.writeSmallInt(0);
-            else
-            {
-                out.writeSmallInt(mlist.size());
-                for (Member m:mlist)
-                {
-                    out.writeLong(m.id);
-                    out.writeString(m.role);
-                    out.writeSmallInt(m.nr);
-                }
-            }
+            members.write(out,'n',mpos);
         }
         if (!Oma.silent)
             System.err.print("Step 1:                                                                      \r");
@@ -1002,7 +1353,7 @@ public class Reunify
                 System.err.printf("Step 1: adding members: %.1f%% (ways)       \r",100.0/(nc+wc+rwc+rac+rcc)*(nc+i));
 
             long id = in.readLong();
-            List<Member> mlist = members.get(id);
+            int mpos = members.find('w',id);
             int version = Oma.preserve_version?in.readSmallInt():0;
             long timestamp = Oma.preserve_timestamp?in.readLong():0;
             long changeset = Oma.preserve_changeset?in.readLong():0;
@@ -1016,7 +1367,7 @@ public class Reunify
 
             int taz = in.readSmallInt();
 
-            if (taz==0 && mlist==null) continue;
+            if (taz==0 && mpos<0) continue;
 
             out.writeByte('W');
             if (Oma.preserve_id)
@@ -1041,18 +1392,7 @@ public class Reunify
             for (int j=0;j<2*taz;j++)
                 out.writeString(in.readString());
 
-            if (mlist==null)
-                out.writeSmallInt(0);
-            else
-            {
-                out.writeSmallInt(mlist.size());
-                for (Member m:mlist)
-                {
-                    out.writeLong(m.id);
-                    out.writeString(m.role);
-                    out.writeSmallInt(m.nr);
-                }
-            }
+            members.write(out,'w',mpos);
         }
         if (!Oma.silent)
             System.err.print("Step 1:                                                                      \r");
@@ -1070,7 +1410,7 @@ public class Reunify
                 System.err.printf("Step 1: adding members: %.1f%% (ways)       \r",100.0/(nc+wc+rwc+rac+rcc)*(nc+wc+i));
 
             long id = in.readLong();
-            List<Member> mlist = members.get(id);
+            int mpos = members.find('r',id);
             int version = Oma.preserve_version?in.readSmallInt():0;
             long timestamp = Oma.preserve_timestamp?in.readLong():0;
             long changeset = Oma.preserve_changeset?in.readLong():0;
@@ -1152,18 +1492,7 @@ public class Reunify
                 for (int j=0;j<2*taz;j++)
                     out.writeString(tags[j]);
 
-                if (mlist==null)
-                    out.writeSmallInt(0);
-                else
-                {
-                    out.writeSmallInt(mlist.size());
-                    for (Member m:mlist)
-                    {
-                        out.writeLong(m.id);
-                        out.writeString(m.role);
-                        out.writeSmallInt(m.nr);
-                    }
-                }
+                members.write(out,'r',mpos);
             }
         }
         if (!Oma.silent)
@@ -1182,7 +1511,7 @@ public class Reunify
                 System.err.printf("Step 1: adding members: %.1f%% (areas)       \r",100.0/(nc+wc+rwc+rac+rcc)*(nc+wc+rwc+i));
 
             long id = in.readLong();
-            List<Member> mlist = members.get(id);
+            int mpos = members.find('r',id);
             int version = Oma.preserve_version?in.readSmallInt():0;
             long timestamp = Oma.preserve_timestamp?in.readLong():0;
             long changeset = Oma.preserve_changeset?in.readLong():0;
@@ -1258,18 +1587,7 @@ public class Reunify
                 for (int j=0;j<2*taz;j++)
                     out.writeString(tags[j]);
 
-                if (mlist==null)
-                    out.writeSmallInt(0);
-                else
-                {
-                    out.writeSmallInt(mlist.size());
-                    for (Member m:mlist)
-                    {
-                        out.writeLong(m.id);
-                        out.writeString(m.role);
-                        out.writeSmallInt(m.nr);
-                    }
-                }
+                members.write(out,'r',mpos);
             }
         }
         if (!Oma.silent)
@@ -1288,7 +1606,7 @@ public class Reunify
                 System.err.printf("Step 1: adding members: %.1f%% (collections)       \r",100.0/(nc+wc+rwc+rac+rcc)*(nc+wc+rwc+rac+i));
 
             long id = in.readLong();
-            List<Member> mlist = members.get(id);
+            int mpos = members.find('r',id);
             int version = Oma.preserve_version?in.readSmallInt():0;
             long timestamp = Oma.preserve_timestamp?in.readLong():0;
             long changeset = Oma.preserve_changeset?in.readLong():0;
@@ -1328,18 +1646,7 @@ public class Reunify
             for (int j=0;j<2*taz;j++)
                 out.writeString(tags[j]);
 
-            if (mlist==null)
-                out.writeSmallInt(0);
-            else
-            {
-                out.writeSmallInt(mlist.size());
-                for (Member m:mlist)
-                {
-                    out.writeLong(m.id);
-                    out.writeString(m.role);
-                    out.writeSmallInt(m.nr);
-                }
-            }
+            members.write(out,'r',mpos);
         }
         if (!Oma.silent)
             System.err.print("Step 1:                                                                      \r");
@@ -0,0 +1,37 @@
+package de.kumakyoo.oma;
+
+import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
+
+// Shares the instances of frequently repeated strings (for example
+// keys), without decoding them again. Each slot holds only the last
+// string mapped to it, so the size of the cache is bounded. Not
+// thread safe.
+public class StringCache
+{
+    private static final int SIZE = 4096;
+    private static final int MAX_LENGTH = 64;
+
+    private byte[][] bytes = new byte[SIZE][];
+    private String[] strings = new String[SIZE];
+
+    public String get(byte[] b, int off, int len)
+    {
+        if (len>MAX_LENGTH)
+            return new String(b,off,len,StandardCharsets.UTF_8);
+
+        int h = len;
+        for (int i=off;i<off+len;i++)
+            h = 31*h+b[i];
+        int slot = (h^(h>>>16))&(SIZE-1);
+
+        byte[] c = bytes[slot];
+        if (c!=null && Arrays.equals(c,0,c.length,b,off,off+len))
+            return strings[slot];
+
+        String s = new String(b,off,len,StandardCharsets.UTF_8);
+        bytes[slot] = Arrays.copyOfRange(b,off,off+len);
+        strings[slot] = s;
+        return s;
+    }
+}
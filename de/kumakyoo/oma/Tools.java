@@ -1,16 +1,17 @@
 package de.kumakyoo.oma;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.Files;
+import java.nio.file.DirectoryNotEmptyException;
 import java.io.IOException;
 import java.io.File;
 import java.io.Reader;
 import java.io.FileReader;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.FileInputStream;
-import java.io.DataInputStream;
 import java.io.BufferedInputStream;
 import java.io.FileOutputStream;
 import java.io.DataOutputStream;
@@ -20,6 +21,7 @@ public class Tools
 {
     static final byte[] O5M_SIGNATUR = {(byte)0xff,(byte)0xe0,0x04,0x6f,0x35,0x6d,0x32};
     static final byte[] PBF_SIGNATUR = {0x0a,0x09,0x4f,0x53,0x4d};
+    static final int SIGNATUR_LENGTH = 9;
 
     private static Path tmpDir = null;
 
@@ -55,23 +57,31 @@ public class Tools
 
     static boolean isO5M(Path filename) throws IOException
     {
-        DataInputStream in = new DataInputStream(Files.newInputStream(filename));
-        byte[] data = new byte[7];
-        in.readFully(data);
-        in.close();
-
-        return Arrays.compare(data,O5M_SIGNATUR)==0;
+        return isO5M(readHead(filename));
     }
 
     static boolean isPBF(Path filename) throws IOException
     {
-        DataInputStream in = new DataInputStream(Files.newInputStream(filename));
-        byte[] data = new byte[5];
-        in.readInt();
-        in.readFully(data);
+        return isPBF(readHead(filename));
+    }
+
+    static boolean isO5M(ByteBuffer head)
+    {
+        return head.limit()>=7 && head.slice(0,7).equals(ByteBuffer.wrap(O5M_SIGNATUR));
+    }
+
+    static boolean isPBF(ByteBuffer head)
+    {
+        return head.limit()>=9 && head.slice(4,5).equals(ByteBuffer.wrap(PBF_SIGNATUR));
+    }
+
+    private static ByteBuffer readHead(Path filename) throws IOException
+    {
+        InputStream in = Files.newInputStream(filename);
+        byte[] data = in.readNBytes(SIGNATUR_LENGTH);
         in.close();
 
-        return Arrays.compare(data,PBF_SIGNATUR)==0;
+        return ByteBuffer.wrap(data);
     }
 
     static Reader getResource(String name, Object o) throws IOException
@@ -90,6 +100,12 @@ public class Tools
                 tmpDir = Files.createTempDirectory("oma_");
             else
                 tmpDir = Files.createTempDirectory(Path.of(Oma.tmpdir),"oma_");
+
+            // Memory mapped files, that cannot be deleted right away,
+            // are deleted at exit. As this happens in reverse order of
+            // registration, the directory has to be registered first.
+            if (Oma.mmap)
+                tmpDir.toFile().deleteOnExit();
         }
 
         return tmpDir.resolve(name);
@@ -97,7 +113,11 @@ public class Tools
 
     static void deleteTmpDir() throws IOException
     {
-        Files.delete(tmpDir);
+        try {
+            Files.delete(tmpDir);
+        } catch (DirectoryNotEmptyException e) {
+            if (!Oma.mmap) throw e;
+        }
     }
 
     static void allocateByteArrays()
@@ -107,6 +127,17 @@ public class Tools
 
     static void allocateByteArrays(long use)
     {
+        if (Oma.tmp_mem>0)
+        {
+            int count = (int)(Oma.tmp_mem/ByteArrayListOutputStream.MAX_ARRAY);
+
+            if (Oma.verbose>=3)
+                System.out.println("      Using "+count+" byte arrays outside of the heap");
+
+            ByteArrayListOutputStream.malloc(count,true);
+            return;
+        }
+
         long available = Tools.memavail();
         long useable = (available-Oma.memlimit)/10*9;
         if (use!=-1 && use<useable) useable = use;
@@ -118,7 +149,7 @@ public class Tools
             System.out.println("      Using "+count+" byte arrays");
         }
 
-        ByteArrayListOutputStream.malloc(count);
+        ByteArrayListOutputStream.malloc(count,false);
     }
 
     static void releaseByteArrays()
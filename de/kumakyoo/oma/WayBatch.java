@@ -0,0 +1,75 @@
+package de.kumakyoo.oma;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// The node references of way i are saved in refs[nds[i]] to
+// refs[nds[i+1]-1].
+public class WayBatch extends ElementBatch
+{
+    int[] nds;
+    long[] refs;
+
+    public WayBatch(int capacity)
+    {
+        this(capacity,null);
+    }
+
+    public WayBatch(int capacity, String[] strings)
+    {
+        super(capacity,strings);
+        nds = new int[capacity+1];
+        refs = new long[0];
+    }
+
+    public void clear()
+    {
+        super.clear();
+        nds[0] = 0;
+    }
+
+    public int add(long id, int version, long timestamp, long changeset, int uid, int user)
+    {
+        int i = super.add(id,version,timestamp,changeset,uid,user);
+        nds[i+1] = nds[i];
+        return i;
+    }
+
+    public void addRef(long ref)
+    {
+        int c = nds[size];
+        if (c==refs.length)
+            refs = Arrays.copyOf(refs,2*refs.length+16);
+        refs[c] = ref;
+        nds[size] = c+1;
+    }
+
+    public void add(OSMWay w)
+    {
+        add(w.id,w.version,w.timestamp,w.changeset,w.uid,w.user);
+        for (long ref:w.nds)
+            addRef(ref);
+        for (var tag:w.tags.entrySet())
+            addTag(tag.getKey(),tag.getValue());
+    }
+
+    public int refCount(int i)
+    {
+        return nds[i+1]-nds[i];
+    }
+
+    public OSMWay get(int i)
+    {
+        List<Long> l = new ArrayList<>(refCount(i));
+        for (int j=nds[i];j<nds[i+1];j++)
+            l.add(refs[j]);
+        return new OSMWay(id[i],version[i],timestamp[i],changeset[i],uid[i],user(i),l,tagMap(i));
+    }
+
+    protected void grow(int capacity)
+    {
+        super.grow(capacity);
+        nds = Arrays.copyOf(nds,capacity+1);
+    }
+}
@@ -0,0 +1,137 @@
+package de.kumakyoo.oma;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.ArrayList;
+
+// Keeps the geometries of ways (number of nodes followed by their
+// locations, as saved in the temporary files) for replacing way
+// references of relations. The geometries are packed into a few
+// large pages instead of using an array per way. The pages are kept
+// for the next pass. Lookup is done with an IdIndex.
+public class WayStore
+{
+    private static final int PAGE_SIZE = 1<<22;
+
+    private long[] ids;
+    private long[] pos;
+    private int[] len;
+    private int c;
+
+    private IdIndex index;
+
+    private List<byte[]> pages = new ArrayList<>();
+    private int page;
+    private int off;
+
+    public WayStore(int capacity)
+    {
+        ids = new long[capacity];
+        pos = new long[capacity];
+        len = new int[capacity];
+    }
+
+    public boolean isFull()
+    {
+        return c==ids.length;
+    }
+
+    public int size()
+    {
+        return c;
+    }
+
+    // Reads the geometry of way id from in.
+    public void add(long id, OmaInputStream in) throws IOException
+    {
+        int az = in.readSmallInt();
+        int head = az<255?1:az<65535?3:7;
+        int l = head+8*az;
+
+        if (page==pages.size() || off+l>pages.get(page).length)
+        {
+            if (page<pages.size() && off>0) page++;
+            off = 0;
+            if (page==pages.size())
+                pages.add(new byte[Math.max(PAGE_SIZE,l)]);
+            else if (pages.get(page).length<l)
+                pages.set(page,new byte[l]);
+        }
+
+        byte[] p = pages.get(page);
+        if (head==1)
+            p[off] = (byte)az;
+        else
+        {
+            p[off] = (byte)255;
+            int v = head==3?az:65535;
+            p[off+1] = (byte)(v>>8);
+            p[off+2] = (byte)v;
+            if (head==7)
+                for (int i=0;i<4;i++)
+                    p[off+3+i] = (byte)(az>>(24-8*i));
+        }
+        in.readFully(p,off+head,8*az);
+
+        ids[c] = id;
+        pos[c] = (long)page<<32|off;
+        len[c] = l;
+        c++;
+        off += l;
+    }
+
+    // Must be called after adding ways and before lookup.
+    public void finish()
+    {
+        sort();
+        index = new IdIndex(ids,c);
+    }
+
+    // Returns the position of the way or a negative value.
+    public int find(long id)
+    {
+        return index.find(id);
+    }
+
+    public void write(OutputStream out, int i) throws IOException
+    {
+        out.write(pages.get((int)(pos[i]>>>32)),(int)pos[i],len[i]);
+    }
+
+    // Removes all ways. The pages are kept.
+    public void clear()
+    {
+        c = 0;
+        page = 0;
+        off = 0;
+        index = null;
+    }
+
+    //////////////////////////////////////////////////////////////////
+
+    // Ways of unsorted input files have to be sorted by id for the
+    // lookup.
+    private void sort()
+    {
+        boolean sorted = true;
+        for (int i=1;i<c && sorted;i++)
+            sorted = ids[i-1]<ids[i];
+        if (sorted) return;
+
+        long[] order = new long[c];
+        for (int i=0;i<c;i++)
+            order[i] = i;
+        PairSorter.sort(ids,order,0,c);
+
+        long[] p = new long[c];
+        int[] l = new int[c];
+        for (int i=0;i<c;i++)
+        {
+            p[i] = pos[(int)order[i]];
+            l[i] = len[(int)order[i]];
+        }
+        System.arraycopy(p,0,pos,0,c);
+        System.arraycopy(l,0,len,0,c);
+    }
+}